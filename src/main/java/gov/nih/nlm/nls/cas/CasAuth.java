@@ -8,20 +8,29 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
 
+import gov.nih.nlm.nls.util.CircuitBreaker;
+import gov.nih.nlm.nls.util.CircuitOpenException;
+import gov.nih.nlm.nls.util.Governor;
+import gov.nih.nlm.nls.util.RetryPolicy;
+
 /**
  * An example Java client to authenticate against CAS using REST services.
  * Please ensure you have followed the necessary setup found on the <a
@@ -40,33 +49,211 @@ public final class CasAuth
 {
   private static final Logger LOG = Logger.getLogger(CasAuth.class.getName());
 
+  /** connect timeout in milliseconds, property: skrapi.cas.connect.timeout */
+  private static final int connectTimeout =
+    Integer.parseInt(System.getProperty("skrapi.cas.connect.timeout", "30000"));
+
+  /** socket (read) timeout in milliseconds, property: skrapi.cas.socket.timeout */
+  private static final int socketTimeout =
+    Integer.parseInt(System.getProperty("skrapi.cas.socket.timeout", "60000"));
+
+  /** timeout waiting for a pooled connection in milliseconds,
+   * property: skrapi.cas.connectionrequest.timeout */
+  private static final int connectionRequestTimeout =
+    Integer.parseInt(System.getProperty("skrapi.cas.connectionrequest.timeout", "30000"));
+
+  /** maximum number of pooled connections, property: skrapi.cas.maxconnections */
+  private static final int maxConnections =
+    Integer.parseInt(System.getProperty("skrapi.cas.maxconnections", "20"));
+
+  /** cookies shared by all requests to the authentication server */
+  private static final CookieStore cookieStore = new BasicCookieStore();
+
+  /** long-lived client shared by all requests, created on first use */
+  private static volatile CloseableHttpClient sharedClient = null;
+
+  private static final Object clientLock = new Object();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread("skrapi-cas-shutdown") {
+	public void run() {
+	  CasAuth.shutdown();
+	}
+      });
+  }
+
   private CasAuth()
   {
     // static-only access
   }
 
+  /**
+   * Get the shared client, keeping connections (and their TLS
+   * sessions) to the authentication server alive between tickets.
+   *
+   * @return shared http client.
+   */
+  static CloseableHttpClient getClient()
+  {
+    CloseableHttpClient client = sharedClient;
+    if (client == null) {
+      synchronized (clientLock) {
+	if (sharedClient == null) {
+	  PoolingHttpClientConnectionManager connectionManager =
+	    new PoolingHttpClientConnectionManager();
+	  connectionManager.setMaxTotal(maxConnections);
+	  connectionManager.setDefaultMaxPerRoute(maxConnections);
+	  RequestConfig requestConfig = RequestConfig.custom()
+	    .setCookieSpec(CookieSpecs.STANDARD)
+	    .setConnectTimeout(connectTimeout)
+	    .setSocketTimeout(socketTimeout)
+	    .setConnectionRequestTimeout(connectionRequestTimeout)
+	    .build();
+	  sharedClient = HttpClientBuilder.create()
+	    .setConnectionManager(connectionManager)
+	    .setDefaultCookieStore(cookieStore)
+	    .setDefaultRequestConfig(requestConfig)
+	    .build();
+	}
+	client = sharedClient;
+      }
+    }
+    return client;
+  }
+
+  /**
+   * Close the shared client and release its pooled connections.  The
+   * client is closed automatically when the JVM exits; a later request
+   * creates a new client.
+   */
+  public static void shutdown()
+  {
+    CloseableHttpClient client;
+    synchronized (clientLock) {
+      client = sharedClient;
+      sharedClient = null;
+    }
+    if (client != null) {
+      try {
+	client.close();
+      } catch (final IOException e) {
+	LOG.warning(e.getMessage());
+      }
+    }
+  }
+
 
   /**
    * Obtain a  Single-Use Proxy Ticket from Central Authentication Server (CAS).
+   * The Ticket Granting Ticket used to mint the service ticket is
+   * cached and re-acquired once if the CAS server rejects it.
+   * Connection failures and server errors are retried with backoff
+   * (see gov.nih.nlm.nls.util.RetryPolicy) unless the circuit breaker
+   * of the CAS server is open.
    * @param serverurl authentication server
    * @param tgtserverurl ticket granting ticket server
    * @param apikey UTS profile API key
    * @param serviceurl url of service with protected resources
-   * @return authentication ticket for service.
+   * @return authentication ticket for service, or null if it cannot
+   *         be obtained.
    */
   public static String getTicket(final String serverurl,
 				 final String tgtserverurl,
 				 final String apikey,
 				 final String serviceurl)
+  {
+    try {
+      return requestTicket(serverurl, tgtserverurl, apikey, serviceurl);
+    } catch (final IOException e) {
+      LOG.warning(e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Obtain a service ticket as getTicket does, reporting failure by
+   * exception.
+   * @param serverurl authentication server
+   * @param tgtserverurl ticket granting ticket server
+   * @param apikey UTS profile API key
+   * @param serviceurl url of service with protected resources
+   * @return authentication ticket for service.
+   * @throws CircuitOpenException if the circuit breaker of the CAS
+   *         server is open
+   * @throws IOException failure of last attempt
+   */
+  public static String requestTicket(final String serverurl,
+				     final String tgtserverurl,
+				     final String apikey,
+				     final String serviceurl)
+    throws IOException
   {
     notNull(serverurl, "server must not be null");
     notNull(tgtserverurl, "server must not be null");
     notNull(apikey, "api key must not be null");
     notNull(serviceurl, "service must not be null");
 
-    return getServiceTicket(serverurl,
-			    getTicketGrantingTicket(tgtserverurl, apikey),
-			    serviceurl);
+    return RetryPolicy.getDefault().execute
+      (CircuitBreaker.forEndpoint(serverurl),
+       () -> acquireTicket(serverurl, tgtserverurl, apikey, serviceurl),
+       CasAuth::isRetryable);
+  }
+
+  /**
+   * Obtain a service ticket using the cached Ticket Granting Ticket,
+   * re-acquiring the Ticket Granting Ticket once if the CAS server
+   * rejects it.
+   * @param serverurl authentication server
+   * @param tgtserverurl ticket granting ticket server
+   * @param apikey UTS profile API key
+   * @param serviceurl url of service with protected resources
+   * @return authentication ticket for service.
+   * @throws IOException I/O exception
+   */
+  private static String acquireTicket(final String serverurl,
+				      final String tgtserverurl,
+				      final String apikey,
+				      final String serviceurl)
+    throws IOException
+  {
+    String ticketGrantingTicket = TicketGrantingTicketCache.get(tgtserverurl, apikey);
+    try {
+      return getServiceTicket(serverurl, ticketGrantingTicket, serviceurl);
+    } catch (final HttpResponseException e) {
+      if ((e.getStatusCode() != HttpStatus.SC_NOT_FOUND) &&
+	  (e.getStatusCode() != HttpStatus.SC_UNAUTHORIZED)) {
+	throw e;
+      }
+      // ticket granting ticket has expired or was revoked, acquire a
+      // new one and try once more.
+      TicketGrantingTicketCache.invalidate(tgtserverurl, apikey, ticketGrantingTicket);
+      ticketGrantingTicket = TicketGrantingTicketCache.get(tgtserverurl, apikey);
+      return getServiceTicket(serverurl, ticketGrantingTicket, serviceurl);
+    }
+  }
+
+  /**
+   * Determine if a failed ticket request may be retried: connection
+   * failures and server errors may be retried, a rejected API key or
+   * ticket may not.
+   * @param e failure of ticket request
+   * @return true if request may be retried.
+   */
+  static boolean isRetryable(final IOException e)
+  {
+    if (e instanceof HttpResponseException) {
+      return ((HttpResponseException)e).getStatusCode() >= 500;
+    }
+    return true;
+  }
+
+  /**
+   * Discard all cached Ticket Granting Tickets, the next call to
+   * getTicket will acquire a new one.
+   */
+  public static void clearTicketGrantingTicketCache()
+  {
+    TicketGrantingTicketCache.clear();
   }
 
   /**
@@ -90,50 +277,31 @@ public final class CasAuth
    * @param ticketGrantingTicket a Proxy Granting Ticket.
    * @param serviceurl url of service with protected resources
    * @return authentication ticket for service.
-   *
+   * @throws HttpResponseException if server rejects ticket granting ticket.
+   * @throws IOException I/O exception
    */
   private static String getServiceTicket(final String serverurl,
 					 final String ticketGrantingTicket,
 					 final String serviceurl)
+    throws IOException
   {
-    if (ticketGrantingTicket == null)
-      return null;
-
-    RequestConfig requestConfig = RequestConfig.custom()
-	.setCookieSpec(CookieSpecs.STANDARD)
-	.build();
-
-    final CloseableHttpClient client = HttpClientBuilder.create()
-	.setDefaultRequestConfig(requestConfig)
-	.build();
-
+    final CloseableHttpClient client = getClient();
     List<NameValuePair> formparams = new ArrayList<NameValuePair>();
     formparams.add(new BasicNameValuePair("service", serviceurl));
+    UrlEncodedFormEntity entity = new UrlEncodedFormEntity(formparams, "UTF-8");
+    final HttpPost post = new HttpPost(serverurl + "/" + ticketGrantingTicket);
+    post.setEntity(entity);
+    post.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
+    // Create a response handler
+    ResponseHandler<String> responseHandler = new BasicResponseHandler();
+    Governor.Permit permit = Governor.forName("cas").acquire();
     try {
-      UrlEncodedFormEntity entity = new UrlEncodedFormEntity(formparams, "UTF-8");
-      final HttpPost post = new HttpPost(serverurl + "/" + ticketGrantingTicket);
-      post.setEntity(entity);
-      post.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
-      // Create a response handler
-      ResponseHandler<String> responseHandler = new BasicResponseHandler();
       String responseBody = client.execute(post, responseHandler);
       // System.out.println("response: " + responseBody);
       return responseBody;
-    } catch (final   java.io.UnsupportedEncodingException  e) {
-      LOG.warning(e.getMessage());
-    } catch (final IOException e) {
-      LOG.warning(e.getMessage());
     } finally {
-      // When HttpClient instance is no longer needed,
-      // shut down the connection manager to ensure
-      // immediate deallocation of all system resources
-      try {
-	client.close();
-      } catch (final IOException e) {
-	LOG.warning(e.getMessage());
-      }
+      permit.close();
     }
-    return null;
   }
 
   /**
@@ -154,49 +322,37 @@ public final class CasAuth
    * @param serverurl authentication server
    * @param apikey UTS profile API key
    * @return a Proxy Granting Ticket.
+   * @throws IOException I/O exception
    */
-  private static String getTicketGrantingTicket(final String serverurl,
-						final String apikey)
+  static String getTicketGrantingTicket(final String serverurl,
+					final String apikey)
+    throws IOException
   {
-    RequestConfig requestConfig = RequestConfig.custom()
-	.setCookieSpec(CookieSpecs.STANDARD)
-	.build();
-
-    final CloseableHttpClient client = HttpClientBuilder.create()
-	.setDefaultRequestConfig(requestConfig)
-	.build();
-
+    final CloseableHttpClient client = getClient();
     List<NameValuePair> formparams = new ArrayList<NameValuePair>();
     formparams.add(new BasicNameValuePair("apikey", apikey));
+    UrlEncodedFormEntity entity = new UrlEncodedFormEntity(formparams, "UTF-8");
+    final HttpPost post = new HttpPost(serverurl);
+    post.setEntity(entity);
+    post.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
+    ResponseHandler<String> responseHandler = new BasicResponseHandler();
+    String response0;
+    Governor.Permit permit = Governor.forName("cas").acquire();
     try {
-      UrlEncodedFormEntity entity = new UrlEncodedFormEntity(formparams, "UTF-8");
-      final HttpPost post = new HttpPost(serverurl);
-      post.setEntity(entity);
-      post.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
-      ResponseHandler<String> responseHandler = new BasicResponseHandler();
-      String response0 = client.execute(post, responseHandler);
-      String response = response0.replace("\n", "");
-      // System.out.println("response: " + response);
-      final Matcher matcher = Pattern.compile(".*action=\".*/(.*?)\".*")
-	.matcher(response);
-      if (matcher.find()) {
-	// System.out.println("ticket: " +  matcher.group(1));
-	return matcher.group(1);
-      } else {
-	throw new RuntimeException("error extracting ticket granting ticket.");
-      }
-    } catch (final java.io.UnsupportedEncodingException  e) {
-      LOG.warning(e.getMessage());
-    } catch (final IOException e) {
-      LOG.warning(e.getMessage());
+      response0 = client.execute(post, responseHandler);
     } finally {
-      try {
-	client.close();
-      } catch (final IOException e) {
-	LOG.warning(e.getMessage());
-      }
+      permit.close();
+    }
+    String response = response0.replace("\n", "");
+    // System.out.println("response: " + response);
+    final Matcher matcher = Pattern.compile(".*action=\".*/(.*?)\".*")
+      .matcher(response);
+    if (matcher.find()) {
+      // System.out.println("ticket: " +  matcher.group(1));
+      return matcher.group(1);
+    } else {
+      throw new RuntimeException("error extracting ticket granting ticket.");
     }
-    return null;
   }
 
   /**
@@ -221,13 +377,17 @@ public final class CasAuth
   static String getProtectedDocument(String service, String ticket)
   {
     try {
-      final CloseableHttpClient client = HttpClients.createDefault();
+      final CloseableHttpClient client = getClient();
       final HttpGet getReq = new HttpGet(service + "?ticket=" + ticket);
       getReq.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
       ResponseHandler<String> responseHandler = new BasicResponseHandler();
-      String responseBody = client.execute(getReq, responseHandler);
-      client.close();
-      return responseBody;
+      Governor.Permit permit = Governor.forName("cas").acquire();
+      try {
+	String responseBody = client.execute(getReq, responseHandler);
+	return responseBody;
+      } finally {
+	permit.close();
+      }
     } catch (final IOException e) {
       LOG.warning(e.getMessage());
     }
@@ -0,0 +1,114 @@
+package gov.nih.nlm.nls.cas;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide cache of CAS Ticket Granting Tickets (TGT).
+ *
+ * A TGT remains valid for several hours, so there is no need to
+ * request a new one for every service ticket.  Tickets are keyed by
+ * TGT server url and UTS API key and are discarded when they exceed
+ * their lifetime, property: skrapi.cas.tgt.lifetime (minutes, default
+ * 480), or when the CAS server rejects them.
+ */
+final class TicketGrantingTicketCache
+{
+  /** lifetime of cached ticket granting ticket in milliseconds */
+  static final long lifetime =
+    Long.parseLong(System.getProperty("skrapi.cas.tgt.lifetime", "480")) * 60000L;
+
+  /** cached tickets keyed by TGT server url and API key */
+  private static final ConcurrentMap<String,Entry> entries =
+    new ConcurrentHashMap<String,Entry>();
+
+  /** one lock per key so that only one thread acquires a given
+   * ticket; a ReentrantLock rather than a monitor so that virtual
+   * threads are not pinned while the ticket is requested */
+  private static final ConcurrentMap<String,ReentrantLock> locks =
+    new ConcurrentHashMap<String,ReentrantLock>();
+
+  private TicketGrantingTicketCache()
+  {
+    // static-only access
+  }
+
+  /** A ticket granting ticket and the time it was acquired. */
+  private static final class Entry
+  {
+    final String ticket;
+    final long timestamp;
+
+    Entry(String ticket, long timestamp) {
+      this.ticket = ticket;
+      this.timestamp = timestamp;
+    }
+
+    boolean isExpired() {
+      return (System.currentTimeMillis() - this.timestamp) >= lifetime;
+    }
+  }
+
+  static String key(String tgtserverurl, String apikey) {
+    return tgtserverurl + '\u0000' + apikey;
+  }
+
+  /**
+   * Get cached ticket granting ticket, acquiring a new one from the
+   * TGT server if none is present or the cached ticket has expired.
+   *
+   * @param tgtserverurl ticket granting ticket server
+   * @param apikey UTS profile API key
+   * @return ticket granting ticket.
+   * @throws IOException if ticket could not be acquired.
+   */
+  static String get(String tgtserverurl, String apikey)
+    throws IOException
+  {
+    String key = key(tgtserverurl, apikey);
+    Entry entry = entries.get(key);
+    if ((entry != null) && (! entry.isExpired())) {
+      return entry.ticket;
+    }
+    ReentrantLock lock = locks.computeIfAbsent(key, k -> new ReentrantLock());
+    lock.lock();
+    try {
+      entry = entries.get(key);
+      if ((entry != null) && (! entry.isExpired())) {
+	return entry.ticket;
+      }
+      entries.remove(key);
+      String ticket = CasAuth.getTicketGrantingTicket(tgtserverurl, apikey);
+      entries.put(key, new Entry(ticket, System.currentTimeMillis()));
+      return ticket;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discard cached ticket granting ticket if it is still the supplied
+   * stale ticket; a ticket acquired concurrently by another thread is
+   * left in place.
+   *
+   * @param tgtserverurl ticket granting ticket server
+   * @param apikey UTS profile API key
+   * @param staleTicket ticket rejected by the CAS server
+   */
+  static void invalidate(String tgtserverurl, String apikey, String staleTicket)
+  {
+    String key = key(tgtserverurl, apikey);
+    Entry entry = entries.get(key);
+    if ((entry != null) && entry.ticket.equals(staleTicket)) {
+      entries.remove(key, entry);
+    }
+  }
+
+  /** Discard all cached ticket granting tickets. */
+  static void clear()
+  {
+    entries.clear();
+  }
+}
@@ -0,0 +1,242 @@
+package gov.nih.nlm.nls.cas;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Pool of prefetched CAS service tickets.
+ *
+ * Service tickets are single-use, so a submission normally has to
+ * wait for a ticket to be minted before it can POST its request.  A
+ * pool keeps a number of ready tickets for each service url and
+ * refills them in the background from the cached Ticket Granting
+ * Ticket whenever the number of ready tickets drops to the low-water
+ * mark.  Tickets older than the service ticket lifetime are dropped.
+ * <p>
+ * Properties:
+ * <dl>
+ *  <dt>skrapi.cas.ticketpool.size
+ *  <dd>number of ready tickets kept per service url, 0 disables the pool (default 0)
+ *  <dt>skrapi.cas.ticketpool.lowwater
+ *  <dd>refill pool when this many or fewer tickets remain (default 1)
+ *  <dt>skrapi.cas.st.lifetime
+ *  <dd>lifetime of a service ticket in seconds (default 270, UTS
+ *      service tickets expire five minutes after they are issued)
+ * </dl>
+ * <pre>
+ * TicketPool pool = TicketPool.getInstance(serverurl, tgtserverurl, apikey);
+ * String ticket = pool.take(serviceurl);
+ * </pre>
+ */
+public final class TicketPool
+{
+  private static final Logger LOG = Logger.getLogger(TicketPool.class.getName());
+
+  /** number of ready tickets kept per service url, property: skrapi.cas.ticketpool.size */
+  public static final int poolSize =
+    Integer.parseInt(System.getProperty("skrapi.cas.ticketpool.size", "0"));
+
+  /** low-water mark, property: skrapi.cas.ticketpool.lowwater */
+  public static final int lowWaterMark =
+    Integer.parseInt(System.getProperty("skrapi.cas.ticketpool.lowwater", "1"));
+
+  /** service ticket lifetime in milliseconds, property: skrapi.cas.st.lifetime (seconds) */
+  public static final long ticketLifetime =
+    Long.parseLong(System.getProperty("skrapi.cas.st.lifetime", "270")) * 1000L;
+
+  /** pools keyed by server urls and API key */
+  private static final ConcurrentMap<String,TicketPool> instances =
+    new ConcurrentHashMap<String,TicketPool>();
+
+  /** background threads used to refill pools */
+  private static final ExecutorService refillExecutor =
+    Executors.newCachedThreadPool(new ThreadFactory() {
+	private final AtomicInteger count = new AtomicInteger();
+	public Thread newThread(Runnable r) {
+	  Thread thread = new Thread(r, "skrapi-ticketpool-" + count.incrementAndGet());
+	  thread.setDaemon(true);
+	  return thread;
+	}
+      });
+
+  private final String serverurl;
+  private final String tgtserverurl;
+  private final String apikey;
+  private final int size;
+  private final int lowWater;
+
+  /** ready tickets keyed by service url */
+  private final ConcurrentMap<String,ServiceTickets> services =
+    new ConcurrentHashMap<String,ServiceTickets>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  /** A service ticket and the time it was acquired. */
+  private static final class Ticket
+  {
+    final String ticket;
+    final long timestamp;
+
+    Ticket(String ticket, long timestamp) {
+      this.ticket = ticket;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /** Ready tickets for one service url. */
+  private static final class ServiceTickets
+  {
+    final Deque<Ticket> tickets = new ConcurrentLinkedDeque<Ticket>();
+    final AtomicInteger count = new AtomicInteger();
+    final AtomicBoolean refilling = new AtomicBoolean();
+  }
+
+  /**
+   * Creates a new <code>TicketPool</code> instance.
+   *
+   * @param serverurl authentication server
+   * @param tgtserverurl ticket granting ticket server
+   * @param apikey UTS profile API key
+   * @param size number of ready tickets kept per service url
+   * @param lowWater refill pool when this many or fewer tickets remain
+   */
+  public TicketPool(String serverurl, String tgtserverurl, String apikey,
+		    int size, int lowWater)
+  {
+    this.serverurl = serverurl;
+    this.tgtserverurl = tgtserverurl;
+    this.apikey = apikey;
+    this.size = size;
+    this.lowWater = Math.min(lowWater, size);
+  }
+
+  /**
+   * Get the shared pool for the supplied servers and API key
+   * configured using the skrapi.cas.ticketpool.* properties.
+   *
+   * @param serverurl authentication server
+   * @param tgtserverurl ticket granting ticket server
+   * @param apikey UTS profile API key
+   * @return shared ticket pool
+   */
+  public static TicketPool getInstance(String serverurl, String tgtserverurl, String apikey)
+  {
+    String key = serverurl + '\u0000' + TicketGrantingTicketCache.key(tgtserverurl, apikey);
+    return instances.computeIfAbsent
+      (key, k -> new TicketPool(serverurl, tgtserverurl, apikey, poolSize, lowWaterMark));
+  }
+
+  /**
+   * Take a ready service ticket for the service, minting one
+   * synchronously if the pool is empty.  The pool is refilled in the
+   * background when it drops to the low-water mark.
+   *
+   * @param serviceurl url of service with protected resources
+   * @return authentication ticket for service.
+   * @throws IOException if no ticket is ready and none can be minted,
+   *         CircuitOpenException if the CAS server's breaker is open
+   */
+  public String take(String serviceurl)
+    throws IOException
+  {
+    ServiceTickets service = this.services(serviceurl);
+    Ticket ticket;
+    while ((ticket = service.tickets.pollFirst()) != null) {
+      service.count.decrementAndGet();
+      if ((System.currentTimeMillis() - ticket.timestamp) < ticketLifetime) {
+	this.hits.incrementAndGet();
+	this.refill(serviceurl, service);
+	return ticket.ticket;
+      }
+      this.expired.incrementAndGet();
+    }
+    this.misses.incrementAndGet();
+    this.refill(serviceurl, service);
+    return CasAuth.requestTicket(this.serverurl, this.tgtserverurl, this.apikey, serviceurl);
+  }
+
+  /**
+   * Fill the pool for the service in the background without taking a
+   * ticket.
+   *
+   * @param serviceurl url of service with protected resources
+   */
+  public void prefill(String serviceurl)
+  {
+    this.refill(serviceurl, this.services(serviceurl));
+  }
+
+  private ServiceTickets services(String serviceurl)
+  {
+    return this.services.computeIfAbsent(serviceurl, k -> new ServiceTickets());
+  }
+
+  /** Start a background refill if pool is at the low-water mark and no refill is running. */
+  private void refill(final String serviceurl, final ServiceTickets service)
+  {
+    if ((this.size <= 0) || (service.count.get() > this.lowWater))
+      return;
+    if (! service.refilling.compareAndSet(false, true))
+      return;
+    refillExecutor.execute(new Runnable() {
+	public void run() {
+	  try {
+	    while (service.count.get() < TicketPool.this.size) {
+	      String ticket = CasAuth.getTicket(TicketPool.this.serverurl,
+						TicketPool.this.tgtserverurl,
+						TicketPool.this.apikey, serviceurl);
+	      if (ticket == null) {
+		LOG.warning("unable to prefetch service ticket for " + serviceurl);
+		break;
+	      }
+	      service.tickets.addLast(new Ticket(ticket, System.currentTimeMillis()));
+	      service.count.incrementAndGet();
+	    }
+	  } finally {
+	    service.refilling.set(false);
+	  }
+	}
+      });
+  }
+
+  /** @return number of tickets taken from the pool. */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /** @return number of tickets minted synchronously because the pool was empty. */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /** @return number of tickets dropped because they exceeded the ticket lifetime. */
+  public long getExpired() {
+    return this.expired.get();
+  }
+
+  /**
+   * @param serviceurl url of service with protected resources
+   * @return number of ready tickets for service.
+   */
+  public int getAvailable(String serviceurl) {
+    ServiceTickets service = this.services.get(serviceurl);
+    return (service == null) ? 0 : service.count.get();
+  }
+
+  public String toString() {
+    return "TicketPool[size=" + this.size + ", lowWater=" + this.lowWater +
+      ", hits=" + this.hits + ", misses=" + this.misses + ", expired=" + this.expired + "]";
+  }
+}
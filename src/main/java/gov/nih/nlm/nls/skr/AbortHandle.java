@@ -0,0 +1,47 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.InterruptedIOException;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Tracks the HTTP request a submission is currently executing so that
+ * the submission can be aborted from another thread.
+ */
+final class AbortHandle
+{
+  private volatile boolean aborted = false;
+  private volatile HttpRequestBase request = null;
+
+  /**
+   * Register request about to be executed by the submission.
+   *
+   * @param request request about to be executed
+   * @throws InterruptedIOException if submission has already been aborted.
+   */
+  void register(HttpRequestBase request)
+    throws InterruptedIOException
+  {
+    this.request = request;
+    if (this.aborted) {
+      request.abort();
+      throw new InterruptedIOException("submission aborted");
+    }
+  }
+
+  /** Abort the request currently executing and any later request. */
+  void abort()
+  {
+    this.aborted = true;
+    HttpRequestBase current = this.request;
+    if (current != null) {
+      current.abort();
+    }
+  }
+
+  /** @return true if submission was aborted. */
+  boolean isAborted()
+  {
+    return this.aborted;
+  }
+}
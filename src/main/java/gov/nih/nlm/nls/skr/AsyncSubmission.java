@@ -0,0 +1,83 @@
+package gov.nih.nlm.nls.skr;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs submissions asynchronously.  Completing the returned future
+ * exceptionally, by cancelling it or by a timeout, aborts the HTTP
+ * request of the submission.
+ */
+final class AsyncSubmission
+{
+  /** A submission that can be aborted through its abort handle. */
+  interface Task<T>
+  {
+    T run(AbortHandle abort) throws Exception;
+  }
+
+  /** executor used when caller does not supply one, see SubmissionExecutors */
+  static final ExecutorService defaultExecutor = SubmissionExecutors.newPerRequestExecutor();
+
+  /** completes futures that exceed their timeout */
+  private static final ScheduledExecutorService timer =
+    Executors.newSingleThreadScheduledExecutor
+    (SubmissionExecutors.daemonThreads("skrapi-timeout-"));
+
+  private AsyncSubmission()
+  {
+    // static-only access
+  }
+
+  /**
+   * Start task on executor.
+   *
+   * @param task submission to run
+   * @param executor executor to run submission on
+   * @param timeout time allowed for submission to complete, 0 or less for no timeout
+   * @param unit unit of timeout
+   * @return future completed with result of submission.
+   */
+  static <T> CompletableFuture<T> start(final Task<T> task, Executor executor,
+					final long timeout, final TimeUnit unit)
+  {
+    final AbortHandle abort = new AbortHandle();
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    future.whenComplete((result, exception) -> {
+	if (exception != null) {
+	  abort.abort();
+	}
+      });
+    try {
+      executor.execute(() -> {
+	  if (future.isDone()) {
+	    return;
+	  }
+	  try {
+	    future.complete(task.run(abort));
+	  } catch (Throwable exception) {
+	    future.completeExceptionally(exception);
+	  }
+	});
+    } catch (RejectedExecutionException exception) {
+      future.completeExceptionally(exception);
+      return future;
+    }
+    if (timeout > 0) {
+      final ScheduledFuture<?> expiry = timer.schedule
+	(() -> future.completeExceptionally
+	 (new TimeoutException("submission did not complete within " +
+			       timeout + " " + unit.toString().toLowerCase())),
+	 timeout, unit);
+      future.whenComplete((result, exception) -> expiry.cancel(false));
+    }
+    return future;
+  }
+}
@@ -0,0 +1,450 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+
+import gov.nih.nlm.nls.util.LongHashIndex;
+
+/**
+ * Removes duplicate text units from the input of a Generic Batch job
+ * and copies the results of each unique unit back to its duplicates.
+ * <pre>
+ * try (BatchDeduplicator dedup = new BatchDeduplicator()) {
+ *   dedup.submit(job, Paths.get("input.txt"), BatchDeduplicator.Format.SINGLE_LINE,
+ *                Paths.get("result.txt"));
+ * }
+ * </pre>
+ *
+ * A unit is a line "ID|text" of single line input, or a MEDLINE
+ * citation whose text is its TI and AB fields.  Units whose text is
+ * the same after collapsing whitespace are sent once, as the first
+ * of them (the representative).  Result lines starting with "ID|",
+ * as written by MTI and the fielded MetaMap and SemRep output, are
+ * copied for each duplicate of the ID with the duplicate's ID, each
+ * duplicate's lines following those of the representative in turn;
+ * other lines are copied once.
+ *
+ * Input and results are streamed; the units seen are kept in
+ * memory-mapped hash tables in a work directory, so inputs larger
+ * than memory can be processed.  Units are compared by a 64 bit hash
+ * of their text.  Each deduplicate, and so each submit, starts a new
+ * job: the units of earlier jobs are forgotten, and fanOut and the
+ * counts apply to the last input deduplicated.
+ */
+public final class BatchDeduplicator
+  implements Closeable
+{
+  /** Format of input. */
+  public enum Format {
+    /** one unit per line, "ID|text" */
+    SINGLE_LINE,
+    /** MEDLINE citations starting with PMID- lines */
+    MEDLINE
+  }
+
+  private final Path directory;
+  private final boolean temporary;
+  /** hash of text to offset of representative ID in representatives file */
+  private final LongHashIndex texts;
+  /** hash of representative ID to offset of its last duplicate record */
+  private final LongHashIndex duplicates;
+  private final FileChannel representatives;
+  private final FileChannel duplicateRecords;
+  private long units = 0;
+  private long uniqueUnits = 0;
+
+  /**
+   * Creates a new <code>BatchDeduplicator</code> using a temporary
+   * work directory, deleted by close.
+   *
+   * @throws IOException if the work directory cannot be created
+   */
+  public BatchDeduplicator()
+    throws IOException
+  {
+    this(Files.createTempDirectory("skrapi_dedup"), true);
+  }
+
+  /**
+   * Creates a new <code>BatchDeduplicator</code>.
+   *
+   * @param directory work directory, its files are replaced
+   * @throws IOException if the work files cannot be created
+   */
+  public BatchDeduplicator(Path directory)
+    throws IOException
+  {
+    this(directory, false);
+  }
+
+  private BatchDeduplicator(Path directory, boolean temporary)
+    throws IOException
+  {
+    Files.createDirectories(directory);
+    this.directory = directory;
+    this.temporary = temporary;
+    this.texts = LongHashIndex.open(directory.resolve("texts.idx"), 1 << 16);
+    this.texts.clear();
+    this.duplicates = LongHashIndex.open(directory.resolve("duplicates.idx"), 1 << 12);
+    this.duplicates.clear();
+    this.representatives = FileChannel.open(directory.resolve("representatives.dat"),
+					    StandardOpenOption.CREATE, StandardOpenOption.READ,
+					    StandardOpenOption.WRITE,
+					    StandardOpenOption.TRUNCATE_EXISTING);
+    this.duplicateRecords = FileChannel.open(directory.resolve("duplicates.dat"),
+					     StandardOpenOption.CREATE, StandardOpenOption.READ,
+					     StandardOpenOption.WRITE,
+					     StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Deduplicate input, then submit the unique units as the UpLoad_File
+   * of a copy of job's fields and write the result with duplicates
+   * restored.
+   *
+   * @param job template job supplying all fields except UpLoad_File
+   * @param input input of job
+   * @param format format of input
+   * @param output file receiving result of all units
+   * @return bytes read from server and written to output.
+   */
+  public TransferStats submit(GenericObject job, Path input, Format format, Path output)
+  {
+    long start = System.nanoTime();
+    Map<String,ContentBody> form = job.snapshotForm();
+    try {
+      Path unique = this.directory.resolve("unique.txt");
+      Path result = this.directory.resolve("unique.result");
+      this.deduplicate(input, format, unique);
+      SpooledFileBody.release(form.put("UpLoad_File",
+				       new FileBody(unique.toFile(), ContentType.TEXT_PLAIN)));
+      TransferStats stats;
+      try (FileChannel channel = FileChannel.open(result, StandardOpenOption.CREATE,
+						  StandardOpenOption.TRUNCATE_EXISTING,
+						  StandardOpenOption.WRITE)) {
+	stats = job.transfer(job.submit(form, null), channel);
+      }
+      long written = this.fanOut(result, output);
+      return new TransferStats(stats.getBytesRead(), written, System.nanoTime() - start);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    } finally {
+      GenericObject.releaseForm(form);
+    }
+  }
+
+  /**
+   * Copy the first of each group of units with the same text to output.
+   *
+   * @param input input of job
+   * @param format format of input
+   * @param output file receiving unique units
+   * @return number of unique units.
+   * @throws IOException I/O exception
+   */
+  public long deduplicate(Path input, Format format, Path output)
+    throws IOException
+  {
+    this.reset();
+    // ISO-8859-1 maps every byte to a char, so content is copied as is.
+    try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.ISO_8859_1);
+	 BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.ISO_8859_1)) {
+      if (format == Format.SINGLE_LINE) {
+	String line;
+	while ((line = reader.readLine()) != null) {
+	  int bar = line.indexOf('|');
+	  if ((bar < 0) || this.isUnique(line.substring(0, bar).trim(), line.substring(bar + 1))) {
+	    writer.write(line);
+	    writer.write('\n');
+	  }
+	}
+      } else {
+	List<String> citation = new ArrayList<String>();
+	boolean afterBlank = true;
+	String line;
+	while ((line = reader.readLine()) != null) {
+	  if (MedlineSplitter.isCitationStart(line, afterBlank)) {
+	    this.writeCitation(citation, writer);
+	  }
+	  citation.add(line);
+	  afterBlank = line.trim().isEmpty();
+	}
+	this.writeCitation(citation, writer);
+      }
+    }
+    this.texts.force();
+    this.duplicates.force();
+    return this.uniqueUnits;
+  }
+
+  /** Forget the units of an earlier job. */
+  private void reset()
+    throws IOException
+  {
+    this.texts.clear();
+    this.duplicates.clear();
+    this.representatives.truncate(0);
+    this.duplicateRecords.truncate(0);
+    this.units = 0;
+    this.uniqueUnits = 0;
+  }
+
+  /** Write citation unless it duplicates an earlier one, then clear it. */
+  private void writeCitation(List<String> citation, BufferedWriter writer)
+    throws IOException
+  {
+    if (citation.isEmpty())
+      return;
+    String id = null;
+    StringBuilder text = new StringBuilder();
+    boolean inText = false;
+    for (String line: citation) {
+      String tag = (line.length() >= 6 && line.charAt(4) == '-') ? line.substring(0, 4).trim() : null;
+      if (tag != null) {
+	inText = tag.equals("TI") || tag.equals("AB");
+	if (tag.equals("PMID") || tag.equals("UI")) {
+	  id = line.substring(5).trim();
+	}
+      }
+      if (inText) {
+	text.append(' ').append((tag != null) ? line.substring(5) : line);
+      }
+    }
+    if ((id == null) || (text.length() == 0) || this.isUnique(id, text)) {
+      for (String line: citation) {
+	writer.write(line);
+	writer.write('\n');
+      }
+    }
+    citation.clear();
+  }
+
+  /**
+   * Record unit, returning false if it duplicates an earlier unit.
+   *
+   * @param id id of unit
+   * @param text text of unit
+   * @return true if unit is the first with its text.
+   */
+  boolean isUnique(String id, CharSequence text)
+    throws IOException
+  {
+    this.units++;
+    long hash = hash(normalize(text));
+    long offset = this.representatives.size();
+    if (this.texts.putIfAbsent(hash, offset)) {
+      write(this.representatives, offset, encode(id));
+      this.uniqueUnits++;
+      return true;
+    }
+    String representative = readString(this.representatives, this.texts.get(hash));
+    if (representative.equals(id)) {
+      // repeated unit with the same id, its result is already written once
+      return false;
+    }
+    // duplicate record: offset of previous record, representative, duplicate
+    long key = hash(representative);
+    long previous = this.duplicates.get(key);
+    byte[] rep = encode(representative);
+    byte[] dup = encode(id);
+    ByteBuffer record = ByteBuffer.allocate(8 + rep.length + dup.length);
+    record.putLong(previous).put(rep).put(dup).flip();
+    long position = this.duplicateRecords.size();
+    write(this.duplicateRecords, position, record.array());
+    this.duplicates.put(key, position);
+    return false;
+  }
+
+  /**
+   * Copy result to output, following the lines of each representative
+   * by a copy of them for each of its duplicates in turn.
+   *
+   * @param result result of unique units
+   * @param output file receiving result of all units
+   * @return number of bytes written.
+   * @throws IOException I/O exception
+   */
+  public long fanOut(Path result, Path output)
+    throws IOException
+  {
+    long written = 0;
+    String lastId = null;
+    List<String> lastDuplicates = Collections.emptyList();
+    // lines of the current representative after its "ID", held until
+    // its ID changes
+    List<String> block = new ArrayList<String>();
+    try (BufferedReader reader = Files.newBufferedReader(result, StandardCharsets.ISO_8859_1);
+	 BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.ISO_8859_1)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+	int bar = line.indexOf('|');
+	String id = (bar <= 0) ? null : line.substring(0, bar);
+	if ((id == null) || ! id.equals(lastId)) {
+	  written += copyBlock(writer, lastDuplicates, block);
+	  lastId = id;
+	  lastDuplicates = (id == null) ? Collections.<String>emptyList() : this.duplicatesOf(id);
+	}
+	writer.write(line);
+	writer.write('\n');
+	written += line.length() + 1;
+	if (! lastDuplicates.isEmpty()) {
+	  block.add(line.substring(bar));
+	}
+      }
+      written += copyBlock(writer, lastDuplicates, block);
+    }
+    return written;
+  }
+
+  /**
+   * Write the held lines of a representative once for each of its
+   * duplicates, then forget them.
+   *
+   * @return number of bytes written.
+   */
+  private static long copyBlock(BufferedWriter writer, List<String> duplicates, List<String> block)
+    throws IOException
+  {
+    long written = 0;
+    for (String duplicate: duplicates) {
+      for (String rest: block) {
+	writer.write(duplicate);
+	writer.write(rest);
+	writer.write('\n');
+	written += duplicate.length() + rest.length() + 1;
+      }
+    }
+    block.clear();
+    return written;
+  }
+
+  /**
+   * Get ids of duplicates of a representative unit, in input order.
+   *
+   * @param id id of representative
+   * @return ids of duplicates.
+   */
+  List<String> duplicatesOf(String id)
+    throws IOException
+  {
+    List<String> ids = new ArrayList<String>();
+    long position = this.duplicates.get(hash(id));
+    while (position >= 0) {
+      ByteBuffer next = ByteBuffer.allocate(8);
+      readFully(this.duplicateRecords, next, position);
+      String representative = readString(this.duplicateRecords, position + 8);
+      String duplicate =
+	readString(this.duplicateRecords,
+		   position + 8 + 4 + representative.getBytes(StandardCharsets.ISO_8859_1).length);
+      if (representative.equals(id)) {
+	ids.add(duplicate);
+      }
+      position = next.getLong(0);
+    }
+    // records are linked from the last to the first
+    Collections.reverse(ids);
+    return ids;
+  }
+
+  /** @return number of units read. */
+  public long getUnits() {
+    return this.units;
+  }
+
+  /** @return number of units sent. */
+  public long getUniqueUnits() {
+    return this.uniqueUnits;
+  }
+
+  /** @return number of units not sent since they duplicate another. */
+  public long getDuplicates() {
+    return this.units - this.uniqueUnits;
+  }
+
+  public void close()
+    throws IOException
+  {
+    try {
+      this.texts.close();
+      this.duplicates.close();
+      this.representatives.close();
+      this.duplicateRecords.close();
+    } finally {
+      if (this.temporary) {
+	SplitBatchSubmission.deleteDirectory(this.directory);
+      }
+    }
+  }
+
+  /** Collapse runs of whitespace and trim text. */
+  static String normalize(CharSequence text)
+  {
+    return text.toString().trim().replaceAll("\\s+", " ");
+  }
+
+  /** First eight bytes of SHA-256 of text. */
+  static long hash(String text)
+  {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+	.digest(text.getBytes(StandardCharsets.ISO_8859_1));
+      return RequestKey.longHash(digest);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Length prefixed bytes of string. */
+  private static byte[] encode(String value)
+  {
+    byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+    return ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes).array();
+  }
+
+  private static String readString(FileChannel channel, long position)
+    throws IOException
+  {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(channel, length, position);
+    ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+    readFully(channel, bytes, position + 4);
+    return new String(bytes.array(), StandardCharsets.ISO_8859_1);
+  }
+
+  private static void write(FileChannel channel, long position, byte[] bytes)
+    throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+    throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+	throw new IOException("unexpected end of deduplication file");
+    }
+  }
+}
@@ -0,0 +1,403 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only journal of a resumable split batch run, see
+ * SplitBatchSubmission.run(Path, Path, Path).  Each line is one
+ * record:
+ * <pre>
+ * RUN   size lastModified parts input
+ * PART  index offset length sha256 file
+ * STATE index SUBMITTED|DONE|FAILED sha256 [resultBytes result]
+ * </pre>
+ * Later records of a part supersede earlier ones.  Records are
+ * written immediately but forced to disk at most every
+ * skrapi.journal.sync.interval milliseconds (default 1000), so a
+ * crash may lose the last records; a part whose DONE record was lost
+ * is submitted again.  A partial last line left by a crash is
+ * discarded when the journal is opened.
+ */
+final class BatchJournal
+  implements AutoCloseable
+{
+  /** milliseconds between forcing records to disk, property: skrapi.journal.sync.interval */
+  static final long syncInterval =
+    Long.parseLong(System.getProperty("skrapi.journal.sync.interval", "1000"));
+
+  /** forces journals to disk */
+  private static final ScheduledExecutorService syncer =
+    Executors.newSingleThreadScheduledExecutor
+    (SubmissionExecutors.daemonThreads("skrapi-journal-"));
+
+  /** Submission state of a part. */
+  enum State { SUBMITTED, DONE, FAILED }
+
+  /** Input range and latest state of a part. */
+  static final class Part
+  {
+    final int index;
+    final long offset;
+    final long length;
+    final String hash;
+    final Path file;
+    State state = null;
+    long resultBytes = -1;
+    Path result = null;
+
+    Part(int index, long offset, long length, String hash, Path file)
+    {
+      this.index = index;
+      this.offset = offset;
+      this.length = length;
+      this.hash = hash;
+      this.file = file;
+    }
+  }
+
+  private final Path path;
+  private final FileChannel channel;
+  private final ScheduledFuture<?> syncTask;
+  private volatile boolean dirty = false;
+  /** RUN record, null if journal is new */
+  private String run = null;
+  private final List<Part> parts = new ArrayList<Part>();
+  /** guards run and parts; a ReentrantLock rather than a monitor so
+   * that virtual threads are not pinned while records are written */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private BatchJournal(Path path)
+    throws IOException
+  {
+    this.path = path;
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				    StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      this.replay();
+    } catch (IOException | RuntimeException e) {
+      this.channel.close();
+      throw e;
+    }
+    this.syncTask = syncer.scheduleWithFixedDelay(this::syncQuietly, syncInterval,
+						  syncInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Open journal, reading existing records.
+   *
+   * @param path file of journal, created if it does not exist
+   * @return journal positioned for appending.
+   * @throws IOException if journal cannot be read
+   */
+  static BatchJournal open(Path path)
+    throws IOException
+  {
+    return new BatchJournal(path);
+  }
+
+  /**
+   * Read records, dropping an incomplete last line.
+   */
+  private void replay()
+    throws IOException
+  {
+    long size = this.channel.size();
+    ByteBuffer content = ByteBuffer.allocate((int)Math.min(size, Integer.MAX_VALUE));
+    while (content.hasRemaining() && (this.channel.read(content, content.position()) > 0)) {
+      // read whole journal, it holds a few records per part
+    }
+    int end = content.position();
+    while ((end > 0) && (content.get(end - 1) != '\n')) {
+      end--;
+    }
+    String text = new String(content.array(), 0, end, StandardCharsets.UTF_8);
+    for (String line: text.split("\n")) {
+      if (! line.isEmpty()) {
+	this.apply(line);
+      }
+    }
+    this.channel.truncate(end);
+    this.channel.position(end);
+  }
+
+  private void apply(String line) {
+    String[] fields = line.split(" ", 7);
+    switch (fields[0]) {
+    case "RUN":
+      this.run = line;
+      this.parts.clear();
+      break;
+    case "PART": {
+      int index = Integer.parseInt(fields[1]);
+      Part part = new Part(index, Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+			   fields[4], Paths.get(line.split(" ", 6)[5]));
+      while (this.parts.size() <= index) this.parts.add(null);
+      this.parts.set(index, part);
+      break;
+    }
+    case "STATE": {
+      int index = Integer.parseInt(fields[1]);
+      Part part = (index < this.parts.size()) ? this.parts.get(index) : null;
+      if ((part != null) && part.hash.equals(fields[3])) {
+	part.state = State.valueOf(fields[2]);
+	if (part.state == State.DONE) {
+	  String[] done = line.split(" ", 6);
+	  part.resultBytes = Long.parseLong(done[4]);
+	  part.result = Paths.get(done[5]);
+	}
+      }
+      break;
+    }
+    default:
+      throw new IllegalStateException("unknown record in " + this.path + ": " + line);
+    }
+  }
+
+  /**
+   * Determine if journal records a run of the same input.
+   *
+   * @param input file of run
+   * @param count number of parts of run
+   * @return true if journal describes a run of input with all its parts.
+   * @throws IOException if input cannot be read
+   */
+  boolean matches(Path input, int count)
+    throws IOException
+  {
+    String record = runRecord(input, count);
+    this.lock.lock();
+    try {
+      if (! record.equals(this.run) || this.parts.isEmpty())
+	return false;
+      for (Part part: this.parts) {
+	if (part == null)
+	  return false;
+      }
+      return true;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /** @return parts recorded in journal, in input order. */
+  List<Part> getParts() {
+    this.lock.lock();
+    try {
+      return new ArrayList<Part>(this.parts);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Start a new run, records of earlier runs are superseded.
+   *
+   * @param input file of run
+   * @param count number of parts of run
+   * @throws IOException if record cannot be written
+   */
+  void beginRun(Path input, int count)
+    throws IOException
+  {
+    String record = runRecord(input, count);
+    this.lock.lock();
+    try {
+      this.append(record);
+      this.run = record;
+      this.parts.clear();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Record range and content hash of a part.
+   *
+   * @param index position of part in input
+   * @param offset offset of part in input
+   * @param file part file
+   * @return recorded part.
+   * @throws IOException if part cannot be read or record cannot be written
+   */
+  Part addPart(int index, long offset, Path file)
+    throws IOException
+  {
+    Part part = new Part(index, offset, Files.size(file), sha256(file), file.toAbsolutePath());
+    this.lock.lock();
+    try {
+      this.append("PART " + index + " " + offset + " " + part.length + " " +
+		  part.hash + " " + part.file);
+      while (this.parts.size() <= index) this.parts.add(null);
+      this.parts.set(index, part);
+    } finally {
+      this.lock.unlock();
+    }
+    return part;
+  }
+
+  /**
+   * Record state of a part.
+   *
+   * @param part part of run
+   * @param state new state
+   * @param result result file of part if state is DONE
+   * @throws IOException if record cannot be written
+   */
+  void setState(Part part, State state, Path result)
+    throws IOException
+  {
+    StringBuilder record = new StringBuilder();
+    record.append("STATE ").append(part.index).append(' ').append(state).append(' ').append(part.hash);
+    long resultBytes = -1;
+    if (state == State.DONE) {
+      resultBytes = Files.size(result);
+      record.append(' ').append(resultBytes).append(' ').append(result.toAbsolutePath());
+    }
+    this.lock.lock();
+    try {
+      this.append(record.toString());
+      part.state = state;
+      part.resultBytes = resultBytes;
+      part.result = (state == State.DONE) ? result.toAbsolutePath() : null;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Determine if the file of a part still has its recorded content.
+   *
+   * @param part part of run
+   * @return true if part file is intact.
+   * @throws IOException if part cannot be read
+   */
+  static boolean isIntact(Part part)
+    throws IOException
+  {
+    return Files.isRegularFile(part.file) && (Files.size(part.file) == part.length) &&
+      sha256(part.file).equals(part.hash);
+  }
+
+  /**
+   * Determine if a part is done and its result is still intact.
+   *
+   * @param part part of run
+   * @return true if part need not be submitted again.
+   * @throws IOException if result cannot be read
+   */
+  boolean isComplete(Part part)
+    throws IOException
+  {
+    State state;
+    Path result;
+    long resultBytes;
+    this.lock.lock();
+    try {
+      state = part.state;
+      result = part.result;
+      resultBytes = part.resultBytes;
+    } finally {
+      this.lock.unlock();
+    }
+    return (state == State.DONE) && Files.isRegularFile(result) &&
+      (Files.size(result) == resultBytes);
+  }
+
+  /** Write a record, caller holds lock. */
+  private void append(String record)
+    throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      this.channel.write(buffer);
+    }
+    this.dirty = true;
+  }
+
+  /**
+   * Force records to disk.
+   *
+   * @throws IOException if journal cannot be forced
+   */
+  void sync()
+    throws IOException
+  {
+    if (this.dirty) {
+      this.dirty = false;
+      this.channel.force(false);
+    }
+  }
+
+  private void syncQuietly() {
+    try {
+      this.sync();
+    } catch (IOException e) {
+      System.err.println("unable to sync journal " + this.path + ": " + e);
+    }
+  }
+
+  public void close()
+    throws IOException
+  {
+    this.syncTask.cancel(false);
+    try {
+      this.sync();
+    } finally {
+      this.channel.close();
+    }
+  }
+
+  private static String runRecord(Path input, int count)
+    throws IOException
+  {
+    return "RUN " + Files.size(input) + " " + Files.getLastModifiedTime(input).toMillis() +
+      " " + count + " " + input.toAbsolutePath();
+  }
+
+  /**
+   * SHA-256 of content of file.
+   *
+   * @param file file to hash
+   * @return hexadecimal digest.
+   * @throws IOException if file cannot be read
+   */
+  static String sha256(Path file)
+    throws IOException
+  {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] buffer = new byte[ResultTransfer.bufferSize];
+    try (InputStream in = Files.newInputStream(file)) {
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+	digest.update(buffer, 0, count);
+      }
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b: digest.digest()) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    return hex.toString();
+  }
+}
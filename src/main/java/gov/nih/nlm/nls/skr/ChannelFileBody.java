@@ -0,0 +1,96 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.FileBody;
+
+/**
+ * File body for large uploads.  The file is read through a
+ * FileChannel in large blocks which are written to the request
+ * without further buffering, and progress is reported to an optional
+ * listener.  The body reports the length of the file, so the form
+ * remains repeatable and can be sent again after a redirect; the file
+ * must not change while the job is submitted.
+ *
+ * <dl>
+ *  <dt>skrapi.upload.buffersize
+ *  <dd>bytes read from file per block (default 1048576)
+ *  <dt>skrapi.upload.progress.interval
+ *  <dd>milliseconds between progress reports (default 1000)
+ * </dl>
+ */
+final class ChannelFileBody extends FileBody
+{
+  /** bytes read from file per block, property: skrapi.upload.buffersize */
+  static final int bufferSize =
+    Integer.parseInt(System.getProperty("skrapi.upload.buffersize", "1048576"));
+
+  /** milliseconds between progress reports, property: skrapi.upload.progress.interval */
+  static final long progressInterval =
+    Long.parseLong(System.getProperty("skrapi.upload.progress.interval", "1000"));
+
+  private final UploadProgressListener listener;
+
+  ChannelFileBody(File file, ContentType contentType)
+  {
+    this(file, contentType, null);
+  }
+
+  private ChannelFileBody(File file, ContentType contentType, UploadProgressListener listener)
+  {
+    super(file, contentType);
+    this.listener = listener;
+  }
+
+  /**
+   * Copy of this body reporting progress to listener.
+   *
+   * @param listener receives progress of upload, may be null
+   * @return body sending the same file.
+   */
+  ChannelFileBody withListener(UploadProgressListener listener)
+  {
+    return new ChannelFileBody(this.getFile(), this.getContentType(), listener);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    try (FileChannel channel = FileChannel.open(this.getFile().toPath(),
+						StandardOpenOption.READ)) {
+      long total = channel.size();
+      long sent = 0;
+      long start = System.nanoTime();
+      long lastReport = start;
+      ByteBuffer buffer = ByteBuffer.allocate((int)Math.max(1, Math.min(bufferSize, total)));
+      byte[] block = buffer.array();
+      int count;
+      while ((count = channel.read(buffer)) >= 0) {
+	if (count > 0) {
+	  out.write(block, 0, buffer.position());
+	  sent += buffer.position();
+	  buffer.clear();
+	}
+	long now = System.nanoTime();
+	if ((this.listener != null) && (now - lastReport >= progressInterval * 1000000L)) {
+	  this.report(sent, total, now - start);
+	  lastReport = now;
+	}
+      }
+      out.flush();
+      if (this.listener != null) {
+	this.report(sent, total, System.nanoTime() - start);
+      }
+    }
+  }
+
+  private void report(long sent, long total, long elapsedNanos) {
+    double rate = (elapsedNanos > 0) ? sent * 1.0e9 / elapsedNanos : 0.0;
+    long eta = (rate > 0) ? (long)(Math.max(0, total - sent) * 1000 / rate) : -1;
+    this.listener.progress(this.getFilename(), sent, total, rate, eta);
+  }
+}
@@ -0,0 +1,212 @@
+package gov.nih.nlm.nls.skr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.StringBody;
+
+/**
+ * Submits interactive text longer than the APIText limit as several
+ * requests in parallel and reassembles the results in order.
+ */
+final class ChunkedSubmission
+{
+  /** end of result marker written by SKR tools run with -E */
+  static final String EOT_MARKER = "<< EOT >>";
+
+  /** id of a MetaMap utterance, the number is its position in the citation */
+  private static final Pattern UTTERANCE_ID = Pattern.compile("^(utterance\\('[^']*\\.)(\\d+)'");
+
+  /** citation level terms of MetaMap machine output whose lists are merged */
+  private static final String[] CITATION_TERMS = { "aas", "neg_list" };
+
+  private ChunkedSubmission()
+  {
+    // static-only access
+  }
+
+  /**
+   * Split text into chunks of at most limit characters and submit a
+   * copy of the form for each chunk.
+   *
+   * @param job job to submit chunks through
+   * @param form form elements of job, APIText is replaced for each chunk
+   * @param text full text to be processed
+   * @param limit maximum length of APIText
+   * @param adjuster rewrites positions in chunk results
+   * @param executor executor that runs the chunk submissions
+   * @return future completed with merged result.
+   */
+  static CompletableFuture<String> start(final GenericObject job,
+					 Map<String,ContentBody> form,
+					 String text, int limit,
+					 final OffsetAdjuster adjuster,
+					 Executor executor)
+  {
+    final List<TextChunker.Chunk> chunks = TextChunker.split(text, limit);
+    final List<CompletableFuture<String>> futures =
+      new ArrayList<CompletableFuture<String>>(chunks.size());
+    for (TextChunker.Chunk chunk: chunks) {
+      final Map<String,ContentBody> chunkForm = new HashMap<String,ContentBody>(form);
+      chunkForm.put("APIText", new StringBody(chunk.getText(), ContentType.TEXT_PLAIN));
+      futures.add(AsyncSubmission.start
+		  (abort -> job.requestResult(chunkForm, abort),
+		   executor, 0, TimeUnit.MILLISECONDS));
+    }
+    CompletableFuture<String> merged =
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+      .thenApply(ignored -> {
+	  List<String> results = new ArrayList<String>(futures.size());
+	  for (CompletableFuture<String> future: futures) {
+	    results.add(future.join());
+	  }
+	  return merge(chunks, results, adjuster);
+	});
+    // a failed or cancelled chunk, or cancelling the merged result,
+    // aborts the remaining chunks.
+    for (CompletableFuture<String> future: futures) {
+      future.whenComplete((result, exception) -> {
+	  if (exception != null) {
+	    merged.completeExceptionally(exception);
+	  }
+	});
+    }
+    merged.whenComplete((result, exception) -> {
+	if (exception != null) {
+	  for (CompletableFuture<String> future: futures) {
+	    future.cancel(true);
+	  }
+	}
+      });
+    return merged;
+  }
+
+  /**
+   * Concatenate chunk results in order, adjusting positions and
+   * keeping only the final end of result marker.  MetaMap machine
+   * output (-q) keeps one header: the args term of the first chunk
+   * and its aas and neg_list terms with the entries of the later
+   * chunks added; utterances are numbered in order across chunks.
+   * Other results, such as MTI output, are only concatenated, MTI
+   * terms are not re-ranked across chunks.
+   *
+   * @param chunks chunks of original text
+   * @param results server results in chunk order
+   * @param adjuster rewrites positions in chunk results
+   * @return merged result.
+   */
+  static String merge(List<TextChunker.Chunk> chunks, List<String> results,
+		      OffsetAdjuster adjuster)
+  {
+    List<String> header = null;
+    StringBuilder body = new StringBuilder();
+    boolean sawEot = false;
+    int utterance = 0;
+    for (int i = 0; i < results.size(); i++) {
+      String result = results.get(i);
+      if (result == null)
+	continue;
+      String adjusted = adjuster.adjust(result, chunks.get(i).getOffset());
+      // lines before the first utterance of machine output are its header
+      boolean inHeader = adjusted.startsWith("utterance(") || adjusted.contains("\nutterance(");
+      List<String> chunkHeader = new ArrayList<String>();
+      for (String line: adjusted.split("\n")) {
+	if (line.trim().equals(EOT_MARKER)) {
+	  sawEot = true;
+	  continue;
+	}
+	if (inHeader && line.startsWith("utterance(")) {
+	  inHeader = false;
+	}
+	if (inHeader) {
+	  chunkHeader.add(line);
+	  continue;
+	}
+	String renumbered = renumberUtterance(line, utterance + 1);
+	if (renumbered != null) {
+	  utterance++;
+	  line = renumbered;
+	}
+	body.append(line).append('\n');
+      }
+      if (header == null) {
+	header = chunkHeader;
+      } else {
+	mergeCitationTerms(header, chunkHeader);
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    if (header != null) {
+      for (String line: header) {
+	sb.append(line).append('\n');
+      }
+    }
+    sb.append(body);
+    if (sawEot) {
+      sb.append(EOT_MARKER).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Renumber an utterance of MetaMap machine output.
+   *
+   * @param line line of machine output
+   * @param number position of utterance in the citation
+   * @return line with the number in the utterance id replaced, or
+   *         null if line does not start an utterance.
+   */
+  static String renumberUtterance(String line, int number)
+  {
+    Matcher m = UTTERANCE_ID.matcher(line);
+    if (! m.find())
+      return null;
+    return m.group(1) + number + "'" + line.substring(m.end());
+  }
+
+  /**
+   * Add the entries of the aas and neg_list terms of a later chunk's
+   * header to the same terms of the merged header; other terms of
+   * later headers, such as args, repeat the first header and are
+   * dropped.
+   */
+  private static void mergeCitationTerms(List<String> header, List<String> later)
+  {
+    for (String line: later) {
+      String name = citationTermName(line);
+      if (name == null)
+	continue;
+      String entries = line.substring(name.length() + 2, line.length() - 3);
+      if (entries.isEmpty())
+	continue;
+      for (int i = 0; i < header.size(); i++) {
+	if (name.equals(citationTermName(header.get(i)))) {
+	  String merged = header.get(i);
+	  String existing = merged.substring(name.length() + 2, merged.length() - 3);
+	  header.set(i, name + "([" + (existing.isEmpty() ? "" : existing + ",") + entries + "]).");
+	  break;
+	}
+      }
+    }
+  }
+
+  /** @return "aas" or "neg_list" if line is that term with a list argument, else null. */
+  private static String citationTermName(String line)
+  {
+    for (String name: CITATION_TERMS) {
+      if (line.startsWith(name + "([") && line.endsWith("]).")) {
+	return name;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,163 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Counters of bytes saved by compressing uploads and results.
+ *
+ * The shared transport advertises "Accept-Encoding: gzip,deflate" and
+ * decompresses encoded responses as they are read, unless property
+ * skrapi.http.compression is false.  Uploads are only compressed when
+ * property skrapi.upload.gzip is true, since the service must accept a
+ * request with "Content-Encoding: gzip".
+ */
+public final class CompressionStats
+{
+  /** context attribute marking a response with a content encoding */
+  private static final String ENCODED_ATTRIBUTE = "skrapi.response.encoded";
+
+  private static final AtomicLong responseWireBytes = new AtomicLong();
+  private static final AtomicLong responseDecodedBytes = new AtomicLong();
+  private static final AtomicLong uploadRawBytes = new AtomicLong();
+  private static final AtomicLong uploadWireBytes = new AtomicLong();
+
+  private CompressionStats()
+  {
+    // static-only access
+  }
+
+  /** @return bytes of compressed responses as received. */
+  public static long getResponseWireBytes() {
+    return responseWireBytes.get();
+  }
+
+  /** @return bytes of compressed responses after decompression. */
+  public static long getResponseDecodedBytes() {
+    return responseDecodedBytes.get();
+  }
+
+  /** @return bytes not transferred because responses were compressed. */
+  public static long getResponseBytesSaved() {
+    return responseDecodedBytes.get() - responseWireBytes.get();
+  }
+
+  /** @return bytes of compressed uploads before compression. */
+  public static long getUploadRawBytes() {
+    return uploadRawBytes.get();
+  }
+
+  /** @return bytes of compressed uploads as sent. */
+  public static long getUploadWireBytes() {
+    return uploadWireBytes.get();
+  }
+
+  /** @return bytes not transferred because uploads were compressed. */
+  public static long getUploadBytesSaved() {
+    return uploadRawBytes.get() - uploadWireBytes.get();
+  }
+
+  /** Counts encoded response bytes, runs before decompression. */
+  static final HttpResponseInterceptor WIRE_COUNTER = new HttpResponseInterceptor() {
+      public void process(HttpResponse response, HttpContext context) {
+	HttpEntity entity = response.getEntity();
+	Header encoding = (entity == null) ? null : entity.getContentEncoding();
+	if ((encoding != null) && ! encoding.getValue().equalsIgnoreCase("identity")) {
+	  context.setAttribute(ENCODED_ATTRIBUTE, Boolean.TRUE);
+	  response.setEntity(new CountingEntity(entity, responseWireBytes));
+	}
+      }
+    };
+
+  /** Counts decompressed response bytes, runs after decompression. */
+  static final HttpResponseInterceptor DECODED_COUNTER = new HttpResponseInterceptor() {
+      public void process(HttpResponse response, HttpContext context) {
+	HttpEntity entity = response.getEntity();
+	if ((entity != null) && (context.getAttribute(ENCODED_ATTRIBUTE) != null)) {
+	  context.removeAttribute(ENCODED_ATTRIBUTE);
+	  response.setEntity(new CountingEntity(entity, responseDecodedBytes));
+	}
+      }
+    };
+
+  /** Entity counting the bytes read from its content or written by it. */
+  static final class CountingEntity extends HttpEntityWrapper
+  {
+    private final AtomicLong counter;
+
+    CountingEntity(HttpEntity entity, AtomicLong counter) {
+      super(entity);
+      this.counter = counter;
+    }
+
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(this.wrappedEntity.getContent()) {
+	public int read() throws IOException {
+	  int b = super.read();
+	  if (b >= 0) counter.incrementAndGet();
+	  return b;
+	}
+	public int read(byte[] buf, int off, int len) throws IOException {
+	  int n = super.read(buf, off, len);
+	  if (n > 0) counter.addAndGet(n);
+	  return n;
+	}
+      };
+    }
+
+    public void writeTo(OutputStream outstream) throws IOException {
+      CountingOutputStream counting = new CountingOutputStream(outstream);
+      this.wrappedEntity.writeTo(counting);
+      this.counter.addAndGet(counting.count);
+    }
+  }
+
+  /**
+   * Compress request entity with gzip as it is written, counting
+   * bytes before and after compression.
+   *
+   * @param entity request entity
+   * @return entity sent with "Content-Encoding: gzip".
+   */
+  static HttpEntity gzipUpload(HttpEntity entity)
+  {
+    return new CountingEntity(new GzipCompressingEntity(new CountingEntity(entity, uploadRawBytes)),
+			      uploadWireBytes);
+  }
+
+  /** Output stream counting bytes written, does not close its target. */
+  static final class CountingOutputStream extends FilterOutputStream
+  {
+    long count = 0;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      this.out.write(b);
+      this.count++;
+    }
+
+    public void write(byte[] buf, int off, int len) throws IOException {
+      this.out.write(buf, off, len);
+      this.count += len;
+    }
+
+    public void close() throws IOException {
+      this.flush();
+    }
+  }
+}
@@ -3,7 +3,21 @@ package gov.nih.nlm.nls.skr;
 import java.lang.*;
 import java.util.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -12,11 +26,15 @@ import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
@@ -24,14 +42,20 @@ import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.content.ByteArrayBody;
 import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.util.EntityUtils;
 
 import gov.nih.nlm.nls.util.Authenticator;
+import gov.nih.nlm.nls.util.CircuitBreaker;
+import gov.nih.nlm.nls.util.Governor;
+import gov.nih.nlm.nls.util.NotSentException;
 import gov.nih.nlm.nls.util.PropertyAuthImpl;
+import gov.nih.nlm.nls.util.RetryPolicy;
 import gov.nih.nlm.nls.cas.CasAuth;
+import gov.nih.nlm.nls.cas.TicketPool;
 
 /**
  * Generic job specific fields and handling routines.
@@ -95,9 +119,6 @@ public class GenericObject
     System.getProperty("skrapi.servicemtiinterurl",
 		       "https://ii.nlm.nih.gov/cgi-bin/II/UTS_Required/API_MTI_interactive.pl");
 
-  /** cas service ticket */
-  private String serviceTicket = "";
-
   /** authenticator class name, property: nls.service.authenticator,
    * default get username and password from console : @see gov.nih.nls.util.ConsoleAuthImpl
    * see also java.net.Authenticator and java.net.PasswordAuthentication
@@ -108,23 +129,75 @@ public class GenericObject
   /** get the password for CAS using this method */
   private Authenticator authenticator = null;
 
+  /** authenticators by class name, resolved once per JVM */
+  private static final ConcurrentMap<String,Authenticator> authenticators =
+    new ConcurrentHashMap<String,Authenticator>();
+
   /** UTS api key from property: uts.apikey, if null check environment
    * variable UTSAPIKEY */
   private String apikey = System.getProperty("uts.apikey",
 					     System.getenv("UTS_API_KEY"));
 
-  /** service ticket timestamp, when ticket was acquired. */
-  private Calendar ticketTimeStamp = Calendar.getInstance();
-
   /** Final service we will use will be set here */
   private String privService = "";
 
+  /** name of governor limiting requests to service, see gov.nih.nlm.nls.util.Governor */
+  private String governorName = "batch";
+
   /** service ticket timeout: default 0 minutes */
   public final static int ticketTimeout =
     Integer.parseInt(System.getProperty("skrapi.cas.ticket.timeout", "0"));
 
-  /** storage for form elements */
-  Map<String,ContentBody> formMap = new HashMap<String,ContentBody>();
+  /** maximum length of interactive APIText accepted by the server,
+   * property: skrapi.apitext.limit */
+  public final static int apiTextLimit =
+    Integer.parseInt(System.getProperty("skrapi.apitext.limit", "10000"));
+
+  /** prefix of keep-alive lines sent by the service while a job is running */
+  static final String KEEP_ALIVE_PREFIX = "NOT DONE LOOP";
+
+  /** probe service with a HEAD request before uploading large forms,
+   * property: skrapi.redirect.probe */
+  public final static boolean probeRedirect =
+    Boolean.parseBoolean(System.getProperty("skrapi.redirect.probe", "true"));
+
+  /** size of form in bytes above which service is probed first,
+   * property: skrapi.redirect.probe.threshold */
+  public final static long probeThreshold =
+    Long.parseLong(System.getProperty("skrapi.redirect.probe.threshold", "65536"));
+
+  /** compress requests containing an UpLoad_File with gzip, the
+   * service must accept Content-Encoding: gzip, property: skrapi.upload.gzip */
+  public final static boolean compressUpload =
+    Boolean.parseBoolean(System.getProperty("skrapi.upload.gzip", "false"));
+
+  /** buffers of setFileBufferField longer than this many bytes are
+   * spooled to a temporary file, property: skrapi.filebuffer.spool.threshold */
+  public final static int spoolThreshold =
+    Integer.parseInt(System.getProperty("skrapi.filebuffer.spool.threshold", "16777216"));
+
+  /** files of setFileField at least this many bytes long are sent
+   * in large blocks from a FileChannel, property: skrapi.upload.channel.threshold */
+  public final static long channelThreshold =
+    Long.parseLong(System.getProperty("skrapi.upload.channel.threshold", "67108864"));
+
+  /** persistent store of interactive results, by default the store
+   * in directory skrapi.store.dir if set */
+  volatile ResultStore resultStore = ResultStore.getDefault();
+
+  /** receives progress of large file uploads */
+  volatile UploadProgressListener uploadProgressListener = null;
+
+  /** form bytes resent by the last submission of each thread, so
+   * that threads sharing this object do not see each other's */
+  private final ThreadLocal<Long> resentBytes = new ThreadLocal<Long>();
+
+  /** form bytes resent by all submissions */
+  private final static AtomicLong totalResentBytes = new AtomicLong();
+
+  /** storage for form elements, concurrent so that submissions may
+   * copy it while fields are set */
+  Map<String,ContentBody> formMap = new ConcurrentHashMap<String,ContentBody>();
   // MultipartEntity formEntity = new MultipartEntity( HttpMultipartMode.BROWSER_COMPATIBLE );
  
 
@@ -137,9 +210,6 @@ public class GenericObject
     if (this.apikey == null) {
       this.apikey = this.authenticator.getApiKeyAuthentication();
     }
-    this.serviceTicket =
-      CasAuth.getTicket(casAuthServer, casTgtServer, this.apikey, this.privService);
-    this.ticketTimeStamp = Calendar.getInstance();
     this.initFields();
     try {
       this.formMap.put("RUN_PROG",
@@ -168,9 +238,6 @@ public class GenericObject
   public GenericObject(String newApiKey) {
     this.apikey = newApiKey;
     this.privService = service;
-    this.serviceTicket =
-      CasAuth.getTicket(casAuthServer, casTgtServer, newApiKey, this.privService);
-    this.ticketTimeStamp = Calendar.getInstance();
     this.initFields();
     try {
       this.formMap.put("RUN_PROG",
@@ -197,22 +264,21 @@ public class GenericObject
     switch (whichInteractive) {
     case 100:
       this.privService = serviceMMInterUrl;
+      this.governorName = "metamap";
       break;
     case 200:
       this.privService = serviceSRInterUrl;
+      this.governorName = "semrep";
       break;
     case 300:
       this.privService = serviceMTInterUrl;
+      this.governorName = "mti";
       break;
     }
     this.promptCredentials();
     if (this.apikey == null) {
       this.apikey = this.authenticator.getApiKeyAuthentication();
     }
-    this.serviceTicket =
-      CasAuth.getTicket(casAuthServer, casTgtServer,
-			this.apikey, this.privService);
-    this.ticketTimeStamp = Calendar.getInstance();
     this.initFields();
     try {
       this.formMap.put("RUN_PROG",
@@ -244,18 +310,17 @@ public class GenericObject
     switch (whichInteractive) {
     case 100:
       this.privService = serviceMMInterUrl;
+      this.governorName = "metamap";
       break;
     case 200:
       this.privService = serviceSRInterUrl;
+      this.governorName = "semrep";
       break;
     case 300:
       this.privService = serviceMTInterUrl;
+      this.governorName = "mti";
       break;
     }
-    this.serviceTicket =
-      CasAuth.getTicket(casAuthServer, casTgtServer,
-			newApiKey, this.privService);
-    this.ticketTimeStamp = Calendar.getInstance();
     this.initFields();
     try {
       this.formMap.put("RUN_PROG",
@@ -339,8 +404,17 @@ public class GenericObject
    * @return true if email is valid.
    */
   public boolean validEmail() {
-    return this.formMap.containsKey("Email_Address") &&
-      this.emailIsWellFormed(this.formMap.get("Email_Address"));
+    return this.validEmail(this.formMap);
+  }
+
+  /**
+   * Determine if email entry of supplied form is valid.
+   * @param form form elements of job.
+   * @return true if email is valid.
+   */
+  boolean validEmail(Map<String,ContentBody> form) {
+    return form.containsKey("Email_Address") &&
+      this.emailIsWellFormed(form.get("Email_Address"));
   }
 
   // ************************************************************************
@@ -352,89 +426,873 @@ public class GenericObject
    */
   public String handleSubmission()
   {
-    // address of proxy server
-    // HttpHost proxy = new HttpHost("127.0.0.1", 8080, "http");
-    CloseableHttpClient client = HttpClients.createDefault();
+    Map<String,ContentBody> form = this.snapshotForm();
     try {
-      // use proxy for client
-      // client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
-      // get a new ticket and reset timestamp
-      this.serviceTicket =
-	CasAuth.getTicket(casAuthServer, casTgtServer, this.apikey, this.privService);
-      this.ticketTimeStamp = Calendar.getInstance();
-      if (this.validEmail()) {
-	// was: MultipartEntity formEntity = PostUtils.buildMultipartEntity( this.formMap );
-	MultipartEntityBuilder multipartEntityBuilder = MultipartEntityBuilder.create();
-	for (Map.Entry<String,ContentBody> element: this.formMap.entrySet()) {
-	  multipartEntityBuilder.addPart(element.getKey(), element.getValue());
-	}
-	HttpEntity formEntity = multipartEntityBuilder.build();
-	HttpPost post = new HttpPost(this.privService + "?ticket=" + this.serviceTicket);
-	post.setEntity(formEntity);
-	post.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
-	// System.out.println("post request: " + post.getRequestLine() );
-	CloseableHttpResponse response = client.execute(post);
-	if (response.getStatusLine().getStatusCode() == 302) {
-	  // System.out.println("PAGE :" + EntityUtils.toString(response.getEntity()));
-	  EntityUtils.consume(response.getEntity()); // consume response input to release connection.
-	  // ignore 302 redirect and resubmit request with ticket.
-	  post = new HttpPost(this.privService + "?ticket=" + this.serviceTicket);
-	  post.setEntity(formEntity);
-	  post.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
-	  // System.out.println("post request: " + post.getRequestLine() );
-	  response = client.execute(post);
-	  HttpEntity respEntity = response.getEntity();
-	  if (respEntity != null) {
-	    StringBuffer rtn = new StringBuffer();
-	    BufferedReader in = new BufferedReader(new InputStreamReader(respEntity.getContent()));
-	    String line = "";
-	    while((line = in.readLine()) != null)
-	      {
-		if(!line.startsWith("NOT DONE LOOP")) {
-		  rtn.append(line);
-		  rtn.append("\n");
-		} // fi
-	      }
-	    return rtn.toString();
-	  }
-	} else {
-	  HttpEntity respEntity = response.getEntity();
-	  if (respEntity != null) {
-	    StringBuffer rtn = new StringBuffer();
-	    BufferedReader in = new BufferedReader(new InputStreamReader(respEntity.getContent()));
-	    String line = "";
-	    while((line = in.readLine()) != null)
-	      {
-		if(!line.startsWith("NOT DONE LOOP")) {
-		  rtn.append(line);
-		  rtn.append("\n");
-		} // fi
-	      }
-	    return rtn.toString();
-	  }
-	}
-      } else {
-	System.err.println("Error: Email Address must be specified");
-	throw new RuntimeException();
-      }
+      return this.requestResult(form, null);
     } catch (Exception e) {
       //LOG.warning(e.getMessage());
       e.printStackTrace();
       throw new RuntimeException(e);
     } finally {
-      // When HttpClient instance is no longer needed,
-      // shut down the connection manager to ensure
-      // immediate deallocation of all system resources
-      try {
-	client.close();
-      } catch (IOException e) {
-	e.printStackTrace();
-	throw new RuntimeException(e);
+      releaseForm(form);
+    }
+  } // handleSubmission
+
+  /**
+   * Submit a job specification using the service and credentials of
+   * this object.  Fields of the specification replace those set on
+   * this object for this submission only; the object is not modified,
+   * so one object may submit specifications from many threads.
+   *
+   * @param spec job specification
+   * @return string containing content of server response.
+   */
+  public String handleSubmission(JobSpec spec)
+  {
+    Map<String,ContentBody> form = this.snapshotForm(spec);
+    try {
+      return this.requestResult(form, null);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    } finally {
+      releaseForm(form);
+    }
+  } // handleSubmission
+
+  /**
+   * Submit a job specification, writing the server response directly
+   * to a file, see handleSubmission(JobSpec).
+   *
+   * @param spec job specification
+   * @param path destination of server response.
+   * @return bytes read and written and throughput of the transfer.
+   */
+  public TransferStats handleSubmission(JobSpec spec, Path path)
+  {
+    Map<String,ContentBody> form = this.snapshotForm(spec);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING,
+						StandardOpenOption.WRITE)) {
+      return this.transfer(this.submit(form, null), channel);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    } finally {
+      releaseForm(form);
+    }
+  } // handleSubmission
+
+  /**
+   * Control the Batch job submission after validating command,
+   * passing each line of the server response to the consumer as it
+   * arrives.  "NOT DONE LOOP" keep-alive lines are dropped and only a
+   * bounded buffer of the response is held in memory.
+   *
+   * @param lineConsumer receives each line of server response.
+   */
+  public void handleSubmission(Consumer<String> lineConsumer)
+  {
+    Map<String,ContentBody> form = this.snapshotForm();
+    try {
+      this.forEachLine(this.submit(form, null), lineConsumer);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    } finally {
+      releaseForm(form);
+    }
+  } // handleSubmission
+
+  /**
+   * Control the Batch job submission after validating command,
+   * returning the lines of the server response as a lazily read
+   * stream.  "NOT DONE LOOP" keep-alive lines are dropped.  The
+   * stream holds a connection of the shared transport and must be
+   * closed, for example:
+   * <pre>
+   * try (Stream&lt;String&gt; lines = genericObj.handleSubmissionAsStream()) {
+   *   lines.forEach(System.out::println);
+   * }
+   * </pre>
+   *
+   * @return stream of lines of server response.
+   */
+  public Stream<String> handleSubmissionAsStream()
+  {
+    final Map<String,ContentBody> form = this.snapshotForm();
+    CloseableHttpResponse response = null;
+    try {
+      response = this.submit(form, null);
+      final CloseableHttpResponse streamResponse = response;
+      HttpEntity respEntity = response.getEntity();
+      if (respEntity == null) {
+	response.close();
+	releaseForm(form);
+	return Stream.empty();
       }
+      BufferedReader in = this.openReader(respEntity);
+      return in.lines()
+	.filter(line -> ! line.startsWith(KEEP_ALIVE_PREFIX))
+	.onClose(() -> {
+	    try {
+	      streamResponse.close();
+	    } catch (IOException e) {
+	      throw new UncheckedIOException(e);
+	    } finally {
+	      releaseForm(form);
+	    }
+	  });
+    } catch (Exception e) {
+      e.printStackTrace();
+      releaseForm(form);
+      if (response != null) {
+	try {
+	  response.close();
+	} catch (IOException e2) {
+	  e.addSuppressed(e2);
+	}
+      }
+      throw new RuntimeException(e);
+    }
+  } // handleSubmissionAsStream
+
+  /**
+   * Control the Batch job submission after validating command,
+   * writing the server response directly to a channel.  "NOT DONE
+   * LOOP" keep-alive lines are dropped, other content is written
+   * unchanged.
+   *
+   * @param channel destination of server response.
+   * @return bytes read and written and throughput of the transfer.
+   */
+  public TransferStats handleSubmission(WritableByteChannel channel)
+  {
+    Map<String,ContentBody> form = this.snapshotForm();
+    try {
+      return this.transfer(this.submit(form, null), channel);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    } finally {
+      releaseForm(form);
     }
-    return null;
   } // handleSubmission
 
+  /**
+   * Control the Batch job submission after validating command,
+   * writing the server response directly to a file.  An existing file
+   * is overwritten.
+   *
+   * @param path destination of server response.
+   * @return bytes read and written and throughput of the transfer.
+   */
+  public TransferStats handleSubmission(Path path)
+  {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING,
+						StandardOpenOption.WRITE)) {
+      return this.handleSubmission(channel);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    }
+  } // handleSubmission
+
+  /**
+   * Submit the job and read the server response.  Interactive jobs
+   * are retried with backoff (see gov.nih.nlm.nls.util.RetryPolicy)
+   * on connection failures, server errors, rejected tickets and, when
+   * COMMAND_ARGS contains -E, results missing the end of result
+   * marker; every attempt uses a fresh service ticket.  Requests fail
+   * immediately while the circuit breaker of the service is open.
+   * Batch jobs are not retried.  When COMMAND_ARGS contains -E,
+   * results of interactive jobs are taken from and added to the
+   * result cache if it is enabled (see ResultCache) and to the
+   * persistent result store of this object (see ResultStore); only
+   * then is a result known to be complete and from a successful
+   * response.  Other results are neither cached nor stored.
+   *
+   * @param form form elements of job
+   * @param abort handle used to abort the submission, may be null
+   * @return content of server response.
+   * @throws IOException failure of last attempt
+   */
+  String requestResult(final Map<String,ContentBody> form, final AbortHandle abort)
+    throws IOException
+  {
+    if (this.isBatch()) {
+      return this.readResponse(this.submit(form, abort));
+    }
+    // requestInteractiveResult checks the status and end of result
+    // marker of results with -E, other results may be error pages or
+    // truncated.
+    boolean complete = hasOption(bodyText(form.get("COMMAND_ARGS")), "-E");
+    ResultCache cache = complete ? ResultCache.getInstance() : null;
+    ResultStore store = complete ? this.resultStore : null;
+    RequestKey key = ((cache == null) && (store == null)) ? null
+      : RequestKey.of(this.privService, form);
+    if (key == null) {
+      return this.requestInteractiveResult(form, abort);
+    }
+    String result = (cache == null) ? null : cache.get(key);
+    if (result != null) {
+      return result;
+    }
+    result = (store == null) ? null : store.get(key);
+    if (result == null) {
+      result = this.requestInteractiveResult(form, abort);
+      if ((result != null) && (store != null)) {
+	store.put(key, result);
+      }
+    }
+    if ((result != null) && (cache != null)) {
+      cache.put(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * Submit an interactive job with retries, see requestResult.  When
+   * COMMAND_ARGS contains -E any response other than 2xx fails.
+   *
+   * @param form form elements of job
+   * @param abort handle used to abort the submission, may be null
+   * @return content of server response.
+   * @throws IOException failure of last attempt
+   */
+  String requestInteractiveResult(final Map<String,ContentBody> form, final AbortHandle abort)
+    throws IOException
+  {
+    final boolean expectEot = hasOption(bodyText(form.get("COMMAND_ARGS")), "-E");
+    return RetryPolicy.getDefault().execute
+      (CircuitBreaker.forEndpoint(this.privService),
+       () -> {
+	CloseableHttpResponse response = this.submit(form, abort);
+	int status = response.getStatusLine().getStatusCode();
+	// with -E only a successful response can hold a complete result
+	if ((status >= 500) || (status == 302) || (status == 401) ||
+	    (expectEot && ((status < 200) || (status >= 300)))) {
+	  String reason = response.getStatusLine().getReasonPhrase();
+	  EntityUtils.consume(response.getEntity());
+	  response.close();
+	  throw new HttpResponseException(status, this.privService + ": " + reason);
+	}
+	String result = this.readResponse(response);
+	if (expectEot && ((result == null) || ! result.trim().endsWith(ChunkedSubmission.EOT_MARKER))) {
+	  throw new TruncatedResultException("result from " + this.privService +
+					     " is missing " + ChunkedSubmission.EOT_MARKER);
+	}
+	return result;
+      },
+       e -> ((abort == null) || ! abort.isAborted()) && isRetryable(e));
+  }
+
+  /** @return true if this object submits Generic Batch jobs. */
+  boolean isBatch()
+  {
+    return this.governorName.equals("batch");
+  }
+
+  /**
+   * Determine if a failed interactive request may be retried.
+   *
+   * @param e failure of request
+   * @return true for connection failures, server errors, rejected
+   *         tickets and truncated results.
+   */
+  static boolean isRetryable(IOException e)
+  {
+    if (e instanceof HttpResponseException) {
+      int status = ((HttpResponseException)e).getStatusCode();
+      return (status >= 500) || (status == 302) || (status == 401);
+    }
+    return ! (e instanceof NotSentException);
+  }
+
+  /**
+   * Determine if command arguments contain an option.
+   *
+   * @param args command arguments, may be null
+   * @param option option to look for
+   * @return true if option is one of the arguments.
+   */
+  static boolean hasOption(String args, String option)
+  {
+    if (args == null)
+      return false;
+    for (String arg: args.trim().split("\\s+")) {
+      if (arg.equals(option))
+	return true;
+    }
+    return false;
+  }
+
+  /**
+   * Submit the job asynchronously on a shared pool of daemon threads.
+   *
+   * @return future completed with content of server response.
+   */
+  public CompletableFuture<String> submitAsync()
+  {
+    return this.submitAsync(AsyncSubmission.defaultExecutor, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Submit the job asynchronously using the supplied executor.
+   *
+   * @param executor executor that runs the submission.
+   * @return future completed with content of server response.
+   */
+  public CompletableFuture<String> submitAsync(Executor executor)
+  {
+    return this.submitAsync(executor, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Submit the job asynchronously using the supplied executor.  The
+   * fields of the job are captured when this method is called, later
+   * changes do not affect the submission.  Cancelling the returned
+   * future, or exceeding the timeout, aborts the HTTP request.
+   *
+   * @param executor executor that runs the submission.
+   * @param timeout time allowed for submission, 0 for no limit.
+   * @param unit unit of timeout.
+   * @return future completed with content of server response, or
+   *         exceptionally with a TimeoutException if the timeout expires.
+   */
+  public CompletableFuture<String> submitAsync(Executor executor, long timeout, TimeUnit unit)
+  {
+    final Map<String,ContentBody> form = this.snapshotForm();
+    return releaseWhenComplete
+      (AsyncSubmission.start(abort -> this.requestResult(form, abort), executor, timeout, unit),
+       form);
+  }
+
+  /**
+   * Submit a job specification asynchronously using the supplied
+   * executor, see handleSubmission(JobSpec).
+   *
+   * @param spec job specification
+   * @param executor executor that runs the submission.
+   * @param timeout time allowed for submission, 0 for no limit.
+   * @param unit unit of timeout.
+   * @return future completed with content of server response.
+   */
+  public CompletableFuture<String> submitAsync(JobSpec spec, Executor executor,
+					       long timeout, TimeUnit unit)
+  {
+    final Map<String,ContentBody> form = this.snapshotForm(spec);
+    return releaseWhenComplete
+      (AsyncSubmission.start(abort -> this.requestResult(form, abort), executor, timeout, unit),
+       form);
+  }
+
+  /**
+   * Current form fields of this object as a job specification,
+   * usable as a template for handleSubmission(JobSpec).  Buffers
+   * spooled to temporary files by setFileBufferField are left out
+   * since their files are deleted after submission.
+   *
+   * @return job specification.
+   */
+  public JobSpec getJobSpec()
+  {
+    Map<String,ContentBody> form = new HashMap<String,ContentBody>(this.formMap);
+    form.values().removeIf(body -> body instanceof SpooledFileBody);
+    return new JobSpec.Builder(form).build();
+  }
+
+  /**
+   * Submit the job in the background, writing the server response to
+   * a file.  The returned handle is saved to disk so the job can be
+   * polled or awaited later, see JobHandle.reattach.
+   *
+   * @param path destination of server response.
+   * @return handle of running job.
+   */
+  public JobHandle submitDetached(Path path)
+  {
+    Map<String,ContentBody> form = this.snapshotForm();
+    try {
+      return JobHandle.start(this, form, path, this.privService);
+    } catch (IOException e) {
+      releaseForm(form);
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Submit the job asynchronously using the supplied executor,
+   * writing the server response directly to a file.
+   *
+   * @param path destination of server response.
+   * @param executor executor that runs the submission.
+   * @param timeout time allowed for submission, 0 for no limit.
+   * @param unit unit of timeout.
+   * @return future completed with statistics of the transfer.
+   */
+  public CompletableFuture<TransferStats> submitAsync(final Path path, Executor executor,
+						      long timeout, TimeUnit unit)
+  {
+    final Map<String,ContentBody> form = this.snapshotForm();
+    return releaseWhenComplete
+      (AsyncSubmission.start
+       (abort -> {
+	 try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+						     StandardOpenOption.TRUNCATE_EXISTING,
+						     StandardOpenOption.WRITE)) {
+	   return this.transfer(this.submit(form, abort), channel);
+	 }
+       }, executor, timeout, unit),
+       form);
+  }
+
+  /**
+   * Submit an interactive job whose APIText may exceed the server's
+   * length limit (property: skrapi.apitext.limit).  Longer text is
+   * split at paragraph or sentence boundaries, the pieces are
+   * submitted in parallel and the results are joined in order with
+   * positions rewritten by the adjuster to refer to the original text.
+   * MetaMap machine output (-q) is merged into one citation with
+   * utterances numbered in order; other results, such as MTI terms,
+   * are only concatenated and not re-ranked across pieces.
+   *
+   * @param adjuster rewrites positions in results of each piece,
+   *                 e.g. OffsetAdjuster.POSITIONAL for MetaMap -q or -N output.
+   * @return content of server responses.
+   */
+  public String handleChunkedSubmission(OffsetAdjuster adjuster)
+  {
+    try {
+      return this.submitChunkedAsync(adjuster, AsyncSubmission.defaultExecutor).get();
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  } // handleChunkedSubmission
+
+  /**
+   * Submit an interactive job whose APIText may exceed the server's
+   * length limit asynchronously, see handleChunkedSubmission.
+   * Cancelling the returned future aborts all pieces.
+   *
+   * @param adjuster rewrites positions in results of each piece.
+   * @param executor executor that runs the submission of each piece.
+   * @return future completed with content of server responses.
+   */
+  public CompletableFuture<String> submitChunkedAsync(OffsetAdjuster adjuster, Executor executor)
+  {
+    Map<String,ContentBody> form = this.snapshotForm();
+    String text = bodyText(form.get("APIText"));
+    if ((text == null) || (text.length() <= apiTextLimit)) {
+      releaseForm(form);
+      return this.submitAsync(executor);
+    }
+    return releaseWhenComplete
+      (ChunkedSubmission.start(this, form, text, apiTextLimit, adjuster, executor), form);
+  }
+
+  /**
+   * Submit an interactive MetaMap job (-q machine output, -E end of
+   * result marker) sentence by sentence: sentences of APIText processed before, in this JVM or
+   * in the result store of this object, are not sent again and the
+   * remaining sentences are sent as one request.  Results are spliced
+   * together with positions relative to the original text, see
+   * SentenceMemo.
+   *
+   * @return content of server response for the whole text.
+   */
+  public String handleSentenceMemoSubmission()
+  {
+    if (! this.privService.equals(serviceMMInterUrl)) {
+      throw new IllegalStateException("sentence memoization requires the interactive MetaMap service");
+    }
+    Map<String,ContentBody> form = this.snapshotForm();
+    try {
+      String text = bodyText(form.get("APIText"));
+      if (text == null) {
+	return this.requestResult(form, null);
+      }
+      return SentenceMemo.run(this, this.privService, form, text);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    } finally {
+      releaseForm(form);
+    }
+  } // handleSentenceMemoSubmission
+
+  /**
+   * Get content of a string form element.
+   *
+   * @param body form element
+   * @return content of element or null if element is not a string body.
+   */
+  static String bodyText(ContentBody body)
+  {
+    if (! (body instanceof StringBody))
+      return null;
+    try {
+      StringBuilder sb = new StringBuilder();
+      Reader reader = ((StringBody)body).getReader();
+      char[] buf = new char[8192];
+      int n;
+      while ((n = reader.read(buf)) != -1) {
+	sb.append(buf, 0, n);
+      }
+      reader.close();
+      return sb.toString();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Copy of the current form elements of the job.
+   *
+   * @return copy of form elements.
+   */
+  Map<String,ContentBody> snapshotForm()
+  {
+    Map<String,ContentBody> form = new HashMap<String,ContentBody>(this.formMap);
+    List<ContentBody> retained = new ArrayList<ContentBody>();
+    try {
+      for (ContentBody body: form.values()) {
+	SpooledFileBody.retain(body);
+	retained.add(body);
+      }
+    } catch (RuntimeException e) {
+      for (ContentBody body: retained) {
+	SpooledFileBody.release(body);
+      }
+      throw e;
+    }
+    return form;
+  }
+
+  /**
+   * Copy of the current form elements of the job with the fields of
+   * a job specification replacing them.
+   *
+   * @param spec job specification
+   * @return copy of form elements.
+   */
+  Map<String,ContentBody> snapshotForm(JobSpec spec)
+  {
+    Map<String,ContentBody> form = this.snapshotForm();
+    try {
+      for (Map.Entry<String,ContentBody> field: spec.getFields().entrySet()) {
+	SpooledFileBody.retain(field.getValue());
+	SpooledFileBody.release(form.put(field.getKey(), field.getValue()));
+      }
+    } catch (RuntimeException e) {
+      releaseForm(form);
+      throw e;
+    }
+    return form;
+  }
+
+  /**
+   * Release a copy of the form elements once its submission is
+   * finished, deleting buffers spooled to temporary files that are no
+   * longer used.
+   *
+   * @param form form elements returned by snapshotForm.
+   */
+  static void releaseForm(Map<String,ContentBody> form)
+  {
+    for (ContentBody body: form.values()) {
+      SpooledFileBody.release(body);
+    }
+  }
+
+  /**
+   * Release a copy of the form elements when its submission completes.
+   *
+   * @param future submission using form elements
+   * @param form form elements returned by snapshotForm.
+   * @return future
+   */
+  static <T> CompletableFuture<T> releaseWhenComplete(CompletableFuture<T> future,
+						      final Map<String,ContentBody> form)
+  {
+    future.whenComplete((result, failure) -> releaseForm(form));
+    return future;
+  }
+
+  /**
+   * Set a form element, releasing the element it replaces.
+   *
+   * @param fieldName name of form element
+   * @param body content of form element
+   */
+  void putField(String fieldName, ContentBody body)
+  {
+    SpooledFileBody.discard(this.formMap.put(fieldName, body));
+  }
+
+  /**
+   * Write server response to channel and release its connection.
+   *
+   * @param response http response
+   * @param channel destination of server response.
+   * @return transfer statistics
+   * @throws IOException I/O exception
+   */
+  TransferStats transfer(CloseableHttpResponse response, WritableByteChannel channel)
+    throws IOException
+  {
+    try {
+      HttpEntity respEntity = response.getEntity();
+      if (respEntity == null) {
+	return new TransferStats(0, 0, 0);
+      }
+      return ResultTransfer.copy(respEntity.getContent(), channel);
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Acquire a service ticket and POST the job's form to the service.
+   * The caller must close the returned response to release its
+   * connection.
+   *
+   * @param form form elements of job
+   * @param abort handle used to abort the submission, may be null
+   * @return server response
+   * @throws IOException I/O exception, NotSentException if no ticket
+   *         can be obtained
+   * @throws IllegalArgumentException if Email_Address is missing or
+   *         malformed
+   */
+  CloseableHttpResponse submit(Map<String,ContentBody> form, AbortHandle abort)
+    throws IOException
+  {
+    // address of proxy server
+    // HttpHost proxy = new HttpHost("127.0.0.1", 8080, "http");
+    CloseableHttpClient client = Transport.getClient();
+    // cookies set by the service only last for this submission
+    HttpClientContext context = HttpClientContext.create();
+    context.setCookieStore(new BasicCookieStore());
+    // use proxy for client
+    // client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+    if (! this.validEmail(form)) {
+      throw new IllegalArgumentException("Email_Address must be specified and well formed");
+    }
+    // wait for the governor before getting a ticket so that the
+    // ticket does not age while queued, the permit is released when
+    // the response is closed.
+    Governor.Permit permit = Governor.forName(this.governorName).acquire();
+    try {
+      // a new ticket for every submission, kept local since other
+      // threads may be submitting with this object.
+      String ticket = this.acquireServiceTicket();
+      if (ticket == null) {
+	throw new NotSentException("unable to acquire service ticket for " + this.privService);
+      }
+      // was: MultipartEntity formEntity = PostUtils.buildMultipartEntity( this.formMap );
+      MultipartEntityBuilder multipartEntityBuilder = MultipartEntityBuilder.create();
+      for (Map.Entry<String,ContentBody> element: form.entrySet()) {
+	ContentBody body = element.getValue();
+	if (body instanceof ChannelFileBody) {
+	  body = ((ChannelFileBody)body).withListener(this.uploadProgressListener);
+	}
+	multipartEntityBuilder.addPart(element.getKey(), body);
+      }
+      HttpEntity formEntity = multipartEntityBuilder.build();
+      if (compressUpload && form.containsKey("UpLoad_File")) {
+	formEntity = CompressionStats.gzipUpload(formEntity);
+      }
+      String url = this.privService + "?ticket=" + ticket;
+      return Transport.closing(this.post(client, context, url, formEntity, abort), permit);
+    } catch (IOException | RuntimeException e) {
+      permit.close();
+      throw e;
+    }
+  } // submit
+
+  /**
+   * POST form to service.  The service validates the ticket and
+   * answers with a 302 redirect after establishing a session, after
+   * which the form has to be sent again.  For large forms a
+   * lightweight HEAD request is sent first so that the session exists
+   * before the form is uploaded; the form is only resent if the
+   * service still answers with a redirect.
+   *
+   * @param client http client
+   * @param context context holding session cookies for this submission
+   * @param url service url including ticket
+   * @param formEntity form to submit
+   * @param abort handle used to abort the submission, may be null
+   * @return server response
+   * @throws IOException I/O exception
+   */
+  CloseableHttpResponse post(CloseableHttpClient client, HttpClientContext context,
+			     String url, HttpEntity formEntity, AbortHandle abort)
+    throws IOException
+  {
+    this.resentBytes.set(0L);
+    long length = formEntity.getContentLength();
+    if (probeRedirect && ((length < 0) || (length > probeThreshold))) {
+      HttpHead head = new HttpHead(url);
+      head.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
+      if (abort != null) abort.register(head);
+      CloseableHttpResponse probe = client.execute(head, context);
+      probe.close();
+    }
+    HttpPost post = new HttpPost(url);
+    post.setEntity(formEntity);
+    post.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
+    // System.out.println("post request: " + post.getRequestLine() );
+    if (abort != null) abort.register(post);
+    CloseableHttpResponse response = client.execute(post, context);
+    if (response.getStatusLine().getStatusCode() == 302) {
+      // System.out.println("PAGE :" + EntityUtils.toString(response.getEntity()));
+      EntityUtils.consume(response.getEntity()); // consume response input to release connection.
+      response.close();
+      if (! formEntity.isRepeatable()) {
+	throw new IOException("service redirected request and form cannot be resent.");
+      }
+      // ignore 302 redirect and resubmit request with ticket.
+      post = new HttpPost(url);
+      post.setEntity(formEntity);
+      post.setHeader(HttpHeaders.USER_AGENT, "Mozilla/5.0 Firefox/26.0");
+      // System.out.println("post request: " + post.getRequestLine() );
+      if (abort != null) abort.register(post);
+      response = client.execute(post, context);
+      this.resentBytes.set(Math.max(length, 0));
+      totalResentBytes.addAndGet(Math.max(length, 0));
+    }
+    return response;
+  }
+
+  /**
+   * Get number of form bytes sent a second time because the service
+   * redirected the last submission made through this object by the
+   * calling thread.  Submissions of other threads, including those
+   * run by submitAsync, are not seen; see getTotalResentBytes.
+   *
+   * @return bytes resent by last submission of calling thread.
+   */
+  public long getResentBytes() {
+    Long bytes = this.resentBytes.get();
+    return (bytes == null) ? 0 : bytes;
+  }
+
+  /**
+   * Get number of form bytes resent by all submissions in this JVM.
+   *
+   * @return total bytes resent.
+   */
+  public static long getTotalResentBytes() {
+    return totalResentBytes.get();
+  }
+
+  /**
+   * Read content of server response, dropping "NOT DONE LOOP"
+   * keep-alive lines, and release its connection back to the shared
+   * transport.
+   *
+   * @param response http response
+   * @return string containing content of server response or null if
+   *         response has no content.
+   * @throws IOException I/O exception
+   */
+  String readResponse(CloseableHttpResponse response)
+    throws IOException
+  {
+    if (response.getEntity() == null) {
+      response.close();
+      return null;
+    }
+    final StringBuffer rtn = new StringBuffer();
+    this.forEachLine(response, line -> rtn.append(line).append("\n"));
+    return rtn.toString();
+  }
+
+  /**
+   * Pass each line of server response to consumer, dropping "NOT
+   * DONE LOOP" keep-alive lines, and release its connection back to
+   * the shared transport.
+   *
+   * @param response http response
+   * @param lineConsumer receives each line of server response.
+   * @throws IOException I/O exception
+   */
+  void forEachLine(CloseableHttpResponse response, Consumer<String> lineConsumer)
+    throws IOException
+  {
+    try {
+      HttpEntity respEntity = response.getEntity();
+      if (respEntity != null) {
+	BufferedReader in = this.openReader(respEntity);
+	String line = "";
+	while((line = in.readLine()) != null)
+	  {
+	    if(!line.startsWith(KEEP_ALIVE_PREFIX)) {
+	      lineConsumer.accept(line);
+	    } // fi
+	  }
+	in.close();
+      }
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Open reader on content of response entity using the charset of
+   * the entity if one is specified.
+   *
+   * @param respEntity http response entity
+   * @return reader of entity content.
+   * @throws IOException I/O exception
+   */
+  BufferedReader openReader(HttpEntity respEntity)
+    throws IOException
+  {
+    ContentType contentType = ContentType.get(respEntity);
+    Charset charset = (contentType == null) ? null : contentType.getCharset();
+    if (charset == null) {
+      return new BufferedReader(new InputStreamReader(respEntity.getContent()));
+    }
+    return new BufferedReader(new InputStreamReader(respEntity.getContent(), charset));
+  }
+
+  // ************************************************************************
+
+  /**
+   * Get a service ticket for this job's service, from the service
+   * ticket pool if it is enabled (property: skrapi.cas.ticketpool.size).
+   *
+   * @return authentication ticket for service.
+   * @throws IOException NotSentException if no ticket can be
+   *         obtained, CircuitOpenException if the CAS server's breaker
+   *         is open
+   */
+  String acquireServiceTicket()
+    throws IOException
+  {
+    try {
+      if (TicketPool.poolSize > 0) {
+	return TicketPool.getInstance(casAuthServer, casTgtServer, this.apikey)
+	  .take(this.privService);
+      }
+      return CasAuth.requestTicket(casAuthServer, casTgtServer, this.apikey, this.privService);
+    } catch (NotSentException e) {
+      throw e;
+    } catch (IOException e) {
+      // authentication retries on its own, the service was not reached
+      throw new NotSentException("unable to acquire service ticket for " + this.privService, e);
+    }
+  }
+
   // ************************************************************************
 
   /**
@@ -469,8 +1327,8 @@ public class GenericObject
   public void setField(String fieldName, String fieldValue)
   {
     try {
-      this.formMap.put(fieldName, new StringBody
-		       (fieldValue, ContentType.TEXT_PLAIN));
+      this.putField(fieldName, new StringBody
+		    (fieldValue, ContentType.TEXT_PLAIN));
     } catch (Exception  e) {
       throw new RuntimeException(e);
     }
@@ -487,9 +1345,9 @@ public class GenericObject
   public void setField(String fieldName, boolean fieldState)
   {
     try {
-      this.formMap.put(fieldName,
-		       new StringBody(Boolean.toString(fieldState),
-				      ContentType.TEXT_PLAIN));
+      this.putField(fieldName,
+		    new StringBody(Boolean.toString(fieldState),
+				   ContentType.TEXT_PLAIN));
     } catch (Exception  e) {
       throw new RuntimeException(e);
     }
@@ -499,46 +1357,118 @@ public class GenericObject
   // ************************************************************************
 
   /**
-   * Set file field of the requested field/option for this job.
+   * Set file field of the requested field/option for this job.  Files
+   * of at least skrapi.upload.channel.threshold bytes are read in
+   * large blocks from a FileChannel, reporting progress to the upload
+   * progress listener.
    *
    * @param  fieldName     Name of the field to be updated
    * @param  localFilename Name of file to add to POST request
    */
   public void setFileField(String fieldName, String localFilename)
   {
-    File localFile = new File(localFilename);
-    this.formMap.put(fieldName, new FileBody( localFile, ContentType.TEXT_PLAIN ));
+    this.putField(fieldName, fileBody(localFilename));
   } // setFileField
 
+  /**
+   * Form element sending a file, read through a FileChannel if it is
+   * at least skrapi.upload.channel.threshold bytes long.
+   *
+   * @param  localFilename Name of file to add to POST request
+   * @return form element.
+   */
+  static ContentBody fileBody(String localFilename)
+  {
+    File localFile = new File(localFilename);
+    if (localFile.length() >= channelThreshold) {
+      return new ChannelFileBody( localFile, ContentType.TEXT_PLAIN );
+    }
+    return new FileBody( localFile, ContentType.TEXT_PLAIN );
+  }
+
+  /**
+   * Set persistent store through which results of interactive jobs
+   * are read, replacing the store of skrapi.store.dir.
+   *
+   * @param store result store, null to disable
+   */
+  public void setResultStore(ResultStore store)
+  {
+    this.resultStore = store;
+  } // setResultStore
+
+  /**
+   * Set listener receiving progress of uploads of large files set by
+   * setFileField.
+   *
+   * @param listener receives progress of upload, null for none
+   */
+  public void setUploadProgressListener(UploadProgressListener listener)
+  {
+    this.uploadProgressListener = listener;
+  } // setUploadProgressListener
+
   /**
    * Set file field of the requested field/option for this job using
-   * in-memory buffer.
+   * in-memory buffer.  The buffer is sent as UTF-8 from memory unless
+   * it is longer than skrapi.filebuffer.spool.threshold bytes, then
+   * it is spooled to a temporary file which is deleted after the job
+   * is submitted; set the field again to resubmit such a job.
    *
    * @param  fieldName     Name of the field to be updated
    * @param  bufferFilename Name of file to add to POST request
-   * @param  buffer         Content to written to temporary file.
+   * @param  buffer         Content of file.
    */
   public void setFileBufferField(String fieldName, String bufferFilename, String buffer)
   {
+    this.putField(fieldName, fileBufferBody(bufferFilename, buffer));
+  } // setFileBufferField
+
+  /**
+   * Form element sending a buffer as UTF-8, from memory unless it is
+   * longer than skrapi.filebuffer.spool.threshold bytes, then from a
+   * temporary file which is deleted after one submission.
+   *
+   * @param  bufferFilename Name of file to add to POST request
+   * @param  buffer         Content of file.
+   * @return form element.
+   */
+  static ContentBody fileBufferBody(String bufferFilename, String buffer)
+  {
+    ContentType contentType = ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8);
+    // every char takes at least one byte, skip encoding a buffer
+    // that is certainly too long to keep in memory.
+    if (buffer.length() <= spoolThreshold) {
+      byte[] content = buffer.getBytes(StandardCharsets.UTF_8);
+      if (content.length <= spoolThreshold) {
+	return new ByteArrayBody(content, contentType, bufferFilename);
+      }
+    }
     try {
-      // this is an inconvient hack to allow the HTTP components to
-      // read this as a file.
-      File localFile = File.createTempFile("skrapi_" + bufferFilename, null);
-      BufferedWriter bw = new BufferedWriter(new FileWriter(localFile));
-      bw.write(buffer);
-      bw.close();
-      this.formMap.put(fieldName, new FileBody( localFile, ContentType.TEXT_PLAIN ));
+      return SpooledFileBody.spool(bufferFilename, buffer);
     } catch (IOException  e) {
       throw new RuntimeException(e);
     }
-  } // setFileField
+  }
 
  /** Prompt user for UTS API Key. */
   void promptCredentials() {
+    this.authenticator =
+      authenticators.computeIfAbsent(this.authenticatorClassName,
+				     GenericObject::loadAuthenticator);
+  }
+
+  /**
+   * Instantiate authenticator class.
+   *
+   * @param authenticatorClassName name of class extending Authenticator
+   * @return authenticator, or null if the class cannot be instantiated.
+   */
+  static Authenticator loadAuthenticator(String authenticatorClassName) {
     try {
-      Class authenticatorClass = Class.forName(this.authenticatorClassName);
+      Class authenticatorClass = Class.forName(authenticatorClassName);
       // Authenticator.setDefault((Authenticator)authenticatorClass.newInstance());
-      this.authenticator = (Authenticator)authenticatorClass.newInstance();
+      return (Authenticator)authenticatorClass.newInstance();
     } catch (java.lang.ClassNotFoundException exception) {
       System.err.println("Class " + authenticatorClassName + " not found!");
       exception.printStackTrace(System.err);
@@ -549,5 +1479,6 @@ public class GenericObject
       System.err.println("Illegal access of Class " + authenticatorClassName);
       exception.printStackTrace(System.err);
     }
+    return null;
   }
 } // class GenericObject
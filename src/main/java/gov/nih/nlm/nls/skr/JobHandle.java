@@ -0,0 +1,510 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.entity.mime.content.ContentBody;
+
+/**
+ * Handle of a Generic Batch job running in the background, see
+ * GenericObject.submitDetached.  The result of the job is written to
+ * a file and the state of the job is saved in a handle file, so the
+ * submitting thread need not wait and the job can be found again by
+ * its id, also from another JVM:
+ * <pre>
+ * JobHandle handle = genericObj.submitDetached(Paths.get("result.txt"));
+ * String id = handle.getId();
+ * ...
+ * JobHandle.reattach(id).await(4, TimeUnit.HOURS);
+ * </pre>
+ *
+ * The batch service returns the result on the connection that
+ * submitted the job, so the job depends on that connection and on
+ * the JVM that holds it.  While the job runs that JVM touches the
+ * handle file periodically; a running job whose handle file has not
+ * been touched for three intervals is reported as LOST.
+ *
+ * <dl>
+ *  <dt>skrapi.batch.handle.dir
+ *  <dd>directory of handle files (default: skrapi-jobs in java.io.tmpdir)
+ *  <dt>skrapi.batch.handle.heartbeat
+ *  <dd>milliseconds between touches of the handle file of a running job (default 60000)
+ *  <dt>skrapi.batch.jobid.pattern
+ *  <dd>regular expression whose first group is the server's job
+ *      identifier, searched for at the start of the result (default: none)
+ * </dl>
+ */
+public final class JobHandle
+{
+  /** State of a job. */
+  public enum State {
+    /** job is running in this or another JVM */
+    RUNNING,
+    /** result has been written */
+    DONE,
+    /** job failed or was cancelled */
+    FAILED,
+    /** JVM running the job exited before it finished */
+    LOST
+  }
+
+  /** directory of handle files, property: skrapi.batch.handle.dir */
+  public static final Path handleDirectory =
+    Paths.get(System.getProperty("skrapi.batch.handle.dir",
+				 Paths.get(System.getProperty("java.io.tmpdir"),
+					   "skrapi-jobs").toString()));
+
+  /** milliseconds between touches of handle files of running jobs,
+   * property: skrapi.batch.handle.heartbeat */
+  public static final long heartbeatInterval =
+    Long.parseLong(System.getProperty("skrapi.batch.handle.heartbeat", "60000"));
+
+  /** pattern of server job identifier, property: skrapi.batch.jobid.pattern */
+  static final Pattern jobIdPattern = compile(System.getProperty("skrapi.batch.jobid.pattern"));
+
+  /** bytes at start of result searched for the server job identifier */
+  static final int jobIdScanLimit = 65536;
+
+  /** handles of jobs running in this JVM, removed once their outcome is saved */
+  private static final ConcurrentMap<String,JobHandle> liveHandles =
+    new ConcurrentHashMap<String,JobHandle>();
+
+  /** touches handle files of running jobs */
+  private static final ScheduledExecutorService heartbeat =
+    Executors.newSingleThreadScheduledExecutor
+    (SubmissionExecutors.daemonThreads("skrapi-jobhandle-"));
+
+  static {
+    heartbeat.scheduleWithFixedDelay(JobHandle::touchRunning, heartbeatInterval,
+				     heartbeatInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private final String id;
+  private final Path resultFile;
+  private final String service;
+  private final long submitted;
+  private final CompletableFuture<TransferStats> future;
+  private volatile State state;
+  private volatile String serverJobId;
+  private volatile String error;
+  private volatile long finished;
+  /** serializes saves of the handle file; a ReentrantLock rather than
+   * a monitor so that virtual threads are not pinned while writing */
+  private final ReentrantLock saveLock = new ReentrantLock();
+
+  private JobHandle(String id, Path resultFile, String service, long submitted,
+		    CompletableFuture<TransferStats> future, State state)
+  {
+    this.id = id;
+    this.resultFile = resultFile;
+    this.service = service;
+    this.submitted = submitted;
+    this.future = future;
+    this.state = state;
+  }
+
+  /**
+   * Start a submission writing its result to a file.
+   *
+   * @param job job submitting the form
+   * @param form form elements of job, released when the job completes
+   * @param resultFile file receiving result of job
+   * @param service url of service, recorded in handle
+   * @return handle of running job.
+   * @throws IOException if the handle cannot be saved
+   */
+  static JobHandle start(final GenericObject job, final Map<String,ContentBody> form,
+			 final Path resultFile, String service)
+    throws IOException
+  {
+    final CompletableFuture<TransferStats> future = new CompletableFuture<TransferStats>();
+    final JobHandle handle =
+      new JobHandle(UUID.randomUUID().toString(), resultFile.toAbsolutePath(),
+		    service, System.currentTimeMillis(), future, State.RUNNING);
+    handle.save();
+    liveHandles.put(handle.id, handle);
+    CompletableFuture<TransferStats> submission = AsyncSubmission.start
+      (abort -> {
+	try (FileChannel channel = FileChannel.open(handle.resultFile, StandardOpenOption.CREATE,
+						    StandardOpenOption.TRUNCATE_EXISTING,
+						    StandardOpenOption.WRITE)) {
+	  WritableByteChannel sink = (jobIdPattern == null) ? channel : handle.scanning(channel);
+	  return job.transfer(job.submit(form, abort), sink);
+	}
+      }, AsyncSubmission.defaultExecutor, 0, TimeUnit.MILLISECONDS);
+    GenericObject.releaseWhenComplete(submission, form);
+    submission.whenComplete((stats, failure) -> {
+	handle.finish(failure);
+	if (failure == null) {
+	  future.complete(stats);
+	} else {
+	  future.completeExceptionally(failure);
+	}
+      });
+    // cancelling the handle's future aborts the submission
+    future.whenComplete((stats, failure) -> {
+	if (failure != null) submission.completeExceptionally(failure);
+      });
+    return handle;
+  }
+
+  /**
+   * Find a job by id, from the jobs running in this JVM or from its
+   * handle file.
+   *
+   * @param id id of job
+   * @return handle of job.
+   * @throws IOException if there is no handle for the id
+   */
+  public static JobHandle reattach(String id)
+    throws IOException
+  {
+    JobHandle handle = liveHandles.get(id);
+    if (handle != null) {
+      return handle;
+    }
+    return load(handleFile(id));
+  }
+
+  /**
+   * Handles of all jobs whose handle files are in the handle directory.
+   *
+   * @return list of job handles.
+   * @throws IOException if the handle directory cannot be read
+   */
+  public static List<JobHandle> list()
+    throws IOException
+  {
+    List<JobHandle> handles = new ArrayList<JobHandle>();
+    if (! Files.isDirectory(handleDirectory)) {
+      return handles;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(handleDirectory, "*.job")) {
+      for (Path file: files) {
+	String name = file.getFileName().toString();
+	handles.add(reattach(name.substring(0, name.length() - 4)));
+      }
+    }
+    return handles;
+  }
+
+  /** @return id of job. */
+  public String getId() {
+    return this.id;
+  }
+
+  /** @return file receiving result of job. */
+  public Path getResultFile() {
+    return this.resultFile;
+  }
+
+  /** @return url of service running job. */
+  public String getService() {
+    return this.service;
+  }
+
+  /** @return job identifier reported by the server, or null if not known. */
+  public String getServerJobId() {
+    return this.serverJobId;
+  }
+
+  /** @return reason job failed, or null. */
+  public String getError() {
+    return this.error;
+  }
+
+  /** @return time job was submitted in milliseconds since the epoch. */
+  public long getSubmitted() {
+    return this.submitted;
+  }
+
+  /** @return time job finished in milliseconds since the epoch, 0 if running. */
+  public long getFinished() {
+    return this.finished;
+  }
+
+  /**
+   * Get current state of job without waiting, rereading the handle
+   * file of a job running in another JVM.
+   *
+   * @return state of job.
+   */
+  public State poll() {
+    if ((this.future == null) && (this.state == State.RUNNING)) {
+      try {
+	this.refresh(load(handleFile(this.id)));
+      } catch (IOException e) {
+	// handle file removed or being replaced, keep last known state
+      }
+    }
+    return this.state;
+  }
+
+  /** @return true if job is no longer running. */
+  public boolean isDone() {
+    return this.poll() != State.RUNNING;
+  }
+
+  /**
+   * Wait for job to finish.
+   *
+   * @param timeout time to wait, 0 or less to wait without limit
+   * @param unit unit of timeout
+   * @return file containing result of job.
+   * @throws IOException if job failed or was lost
+   * @throws InterruptedException if interrupted while waiting
+   * @throws TimeoutException if job is still running after timeout
+   */
+  public Path await(long timeout, TimeUnit unit)
+    throws IOException, InterruptedException, TimeoutException
+  {
+    if (this.future != null) {
+      try {
+	if (timeout > 0) {
+	  this.future.get(timeout, unit);
+	} else {
+	  this.future.get();
+	}
+      } catch (ExecutionException | CancellationException e) {
+	// state and error are recorded by finish
+      }
+    } else {
+      // running in another JVM, wait for its handle file to change
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      long pause = Math.min(heartbeatInterval, 5000);
+      while (this.poll() == State.RUNNING) {
+	long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+	if ((timeout > 0) && (remaining <= 0)) {
+	  break;
+	}
+	Thread.sleep((timeout > 0) ? Math.min(pause, remaining) : pause);
+      }
+    }
+    switch (this.state) {
+    case DONE:
+      return this.resultFile;
+    case RUNNING:
+      throw new TimeoutException("job " + this.id + " is still running");
+    default:
+      throw new IOException("job " + this.id + " " + this.state.toString().toLowerCase() +
+			    ((this.error != null) ? ": " + this.error : ""));
+    }
+  }
+
+  /**
+   * Abort job if it is running in this JVM.
+   *
+   * @return true if job was aborted.
+   */
+  public boolean cancel() {
+    return (this.future != null) && this.future.cancel(true);
+  }
+
+  /**
+   * Delete handle file of a job that is no longer running, the result
+   * file is kept.
+   *
+   * @throws IOException if handle file cannot be deleted
+   */
+  public void delete()
+    throws IOException
+  {
+    if (! this.isDone()) {
+      throw new IllegalStateException("job " + this.id + " is still running");
+    }
+    liveHandles.remove(this.id);
+    Files.deleteIfExists(handleFile(this.id));
+  }
+
+  public String toString() {
+    return "JobHandle[" + this.id + ", " + this.state +
+      ((this.serverJobId != null) ? ", server job " + this.serverJobId : "") +
+      ", " + this.resultFile + "]";
+  }
+
+  /** Copy state of job from a handle reloaded from its file. */
+  private void refresh(JobHandle loaded) {
+    this.finished = loaded.finished;
+    this.serverJobId = loaded.serverJobId;
+    this.error = loaded.error;
+    this.state = loaded.state;
+  }
+
+  /** Touch handle files of jobs running in this JVM. */
+  private static void touchRunning() {
+    FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+    for (JobHandle handle: liveHandles.values()) {
+      if (handle.state == State.RUNNING) {
+	try {
+	  Files.setLastModifiedTime(handleFile(handle.id), now);
+	} catch (IOException e) {
+	  // handle file is replaced when the job finishes
+	}
+      }
+    }
+  }
+
+  /**
+   * Record outcome of job in handle file, then forget the handle;
+   * reattach reads the outcome from the file.  A handle whose file
+   * cannot be saved is kept so that this JVM still knows its state.
+   */
+  private void finish(Throwable failure) {
+    this.finished = System.currentTimeMillis();
+    if (failure == null) {
+      this.state = State.DONE;
+    } else {
+      this.error = failure.toString();
+      this.state = State.FAILED;
+    }
+    try {
+      this.save();
+      liveHandles.remove(this.id);
+    } catch (IOException e) {
+      System.err.println("unable to save handle of job " + this.id + ": " + e);
+    }
+  }
+
+  /** Channel recording the server job id found in the start of the result. */
+  private WritableByteChannel scanning(final WritableByteChannel channel) {
+    return new WritableByteChannel() {
+      private final StringBuilder head = new StringBuilder();
+
+      public int write(ByteBuffer src) throws IOException {
+	if ((serverJobId == null) && (this.head.length() < jobIdScanLimit)) {
+	  ByteBuffer view = src.duplicate();
+	  int length = Math.min(view.remaining(), jobIdScanLimit - this.head.length());
+	  for (int i = 0; i < length; i++) {
+	    this.head.append((char)(view.get() & 0xff));
+	  }
+	  Matcher matcher = jobIdPattern.matcher(this.head);
+	  if (matcher.find()) {
+	    serverJobId = (matcher.groupCount() > 0) ? matcher.group(1) : matcher.group();
+	    save();
+	  }
+	}
+	return channel.write(src);
+      }
+
+      public boolean isOpen() {
+	return channel.isOpen();
+      }
+
+      public void close() throws IOException {
+	channel.close();
+      }
+    };
+  }
+
+  /**
+   * Save handle, replacing the handle file atomically.
+   *
+   * @throws IOException if the handle file cannot be written
+   */
+  void save()
+    throws IOException
+  {
+    this.saveLock.lock();
+    try {
+      this.writeHandleFile();
+    } finally {
+      this.saveLock.unlock();
+    }
+  }
+
+  /** Write handle file, caller holds saveLock. */
+  private void writeHandleFile()
+    throws IOException
+  {
+    Properties properties = new Properties();
+    properties.setProperty("id", this.id);
+    properties.setProperty("state", this.state.name());
+    properties.setProperty("result", this.resultFile.toString());
+    properties.setProperty("service", this.service);
+    properties.setProperty("submitted", Long.toString(this.submitted));
+    properties.setProperty("finished", Long.toString(this.finished));
+    if (this.serverJobId != null) properties.setProperty("serverJobId", this.serverJobId);
+    if (this.error != null) properties.setProperty("error", this.error);
+    Files.createDirectories(handleDirectory);
+    Path file = handleFile(this.id);
+    Path temp = Files.createTempFile(handleDirectory, this.id, ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(temp)) {
+	properties.store(out, "skrapi batch job");
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+		 StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Load handle of a job that is not running in this JVM.
+   *
+   * @param file handle file
+   * @return handle of job.
+   * @throws IOException if the handle file cannot be read
+   */
+  static JobHandle load(Path file)
+    throws IOException
+  {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      properties.load(in);
+    }
+    State state = State.valueOf(properties.getProperty("state"));
+    JobHandle handle =
+      new JobHandle(properties.getProperty("id"), Paths.get(properties.getProperty("result")),
+		    properties.getProperty("service"),
+		    Long.parseLong(properties.getProperty("submitted", "0")), null, state);
+    handle.finished = Long.parseLong(properties.getProperty("finished", "0"));
+    handle.serverJobId = properties.getProperty("serverJobId");
+    handle.error = properties.getProperty("error");
+    if (state == State.RUNNING) {
+      // the JVM running the job stopped touching the handle file
+      long age = System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis();
+      if (age > 3 * heartbeatInterval) {
+	handle.state = State.LOST;
+      }
+    }
+    return handle;
+  }
+
+  private static Path handleFile(String id) {
+    return handleDirectory.resolve(id + ".job");
+  }
+
+  private static Pattern compile(String regex) {
+    return ((regex == null) || regex.isEmpty()) ? null : Pattern.compile(regex);
+  }
+}
@@ -0,0 +1,195 @@
+package gov.nih.nlm.nls.skr;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.StringBody;
+
+/**
+ * Immutable set of form fields of a job, for example Batch_Command,
+ * COMMAND_ARGS, KSOURCE and Email_Address.  A specification holds no
+ * credentials or connection state and may be shared between threads;
+ * it is submitted by a GenericObject, whose own fields are used for
+ * any field the specification does not set:
+ * <pre>
+ * JobSpec template = JobSpec.builder()
+ *   .setField("Email_Address", email)
+ *   .setField("KSOURCE", "1718")
+ *   .setField("COMMAND_ARGS", "-N")
+ *   .build();
+ * GenericObject session = new GenericObject(100);
+ * // from any number of threads
+ * String result = session.handleSubmission(template.withField("APIText", text));
+ * </pre>
+ */
+public final class JobSpec
+{
+  private final Map<String,ContentBody> fields;
+
+  private JobSpec(Map<String,ContentBody> fields)
+  {
+    this.fields = Collections.unmodifiableMap(fields);
+  }
+
+  /** @return builder of a new specification without fields. */
+  public static Builder builder()
+  {
+    return new Builder(Collections.<String,ContentBody>emptyMap());
+  }
+
+  /** @return builder initialized with the fields of this specification. */
+  public Builder toBuilder()
+  {
+    return new Builder(this.fields);
+  }
+
+  /**
+   * Copy of this specification with one string field changed.
+   *
+   * @param fieldName name of field
+   * @param fieldValue value of field
+   * @return new specification.
+   */
+  public JobSpec withField(String fieldName, String fieldValue)
+  {
+    return this.toBuilder().setField(fieldName, fieldValue).build();
+  }
+
+  /**
+   * Copy of this specification with one file field changed.
+   *
+   * @param fieldName name of field
+   * @param localFilename name of file to send
+   * @return new specification.
+   */
+  public JobSpec withFileField(String fieldName, String localFilename)
+  {
+    return this.toBuilder().setFileField(fieldName, localFilename).build();
+  }
+
+  /**
+   * Copy of this specification with one file field sent from memory.
+   *
+   * @param fieldName name of field
+   * @param bufferFilename name of file sent with buffer
+   * @param buffer content of file
+   * @return new specification.
+   */
+  public JobSpec withFileBufferField(String fieldName, String bufferFilename, String buffer)
+  {
+    return this.toBuilder().setFileBufferField(fieldName, bufferFilename, buffer).build();
+  }
+
+  /** @return unmodifiable map of form fields. */
+  public Map<String,ContentBody> getFields()
+  {
+    return this.fields;
+  }
+
+  /**
+   * Get value of a string field.
+   *
+   * @param fieldName name of field
+   * @return value of field, or null if not set or not a string field.
+   */
+  public String getField(String fieldName)
+  {
+    return GenericObject.bodyText(this.fields.get(fieldName));
+  }
+
+  public String toString() {
+    return "JobSpec" + this.fields.keySet();
+  }
+
+  /**
+   * Builder of job specifications, not thread-safe.
+   */
+  public static final class Builder
+  {
+    private final Map<String,ContentBody> fields;
+
+    Builder(Map<String,ContentBody> fields)
+    {
+      this.fields = new LinkedHashMap<String,ContentBody>(fields);
+    }
+
+    /**
+     * Set a string field.
+     *
+     * @param fieldName name of field
+     * @param fieldValue value of field
+     * @return this builder.
+     */
+    public Builder setField(String fieldName, String fieldValue)
+    {
+      this.fields.put(fieldName, new StringBody(fieldValue, ContentType.TEXT_PLAIN));
+      return this;
+    }
+
+    /**
+     * Set a boolean field.
+     *
+     * @param fieldName name of field
+     * @param fieldState value of field
+     * @return this builder.
+     */
+    public Builder setField(String fieldName, boolean fieldState)
+    {
+      return this.setField(fieldName, Boolean.toString(fieldState));
+    }
+
+    /**
+     * Set a file field, large files are sent as by
+     * GenericObject.setFileField.
+     *
+     * @param fieldName name of field
+     * @param localFilename name of file to send
+     * @return this builder.
+     */
+    public Builder setFileField(String fieldName, String localFilename)
+    {
+      this.fields.put(fieldName, GenericObject.fileBody(localFilename));
+      return this;
+    }
+
+    /**
+     * Set a file field sent as UTF-8 as by
+     * GenericObject.setFileBufferField: a buffer longer than
+     * skrapi.filebuffer.spool.threshold bytes is spooled to a
+     * temporary file, and a specification holding it can only be
+     * submitted once.
+     *
+     * @param fieldName name of field
+     * @param bufferFilename name of file sent with buffer
+     * @param buffer content of file
+     * @return this builder.
+     */
+    public Builder setFileBufferField(String fieldName, String bufferFilename, String buffer)
+    {
+      this.fields.put(fieldName, GenericObject.fileBufferBody(bufferFilename, buffer));
+      return this;
+    }
+
+    /**
+     * Remove a field, the submitting GenericObject's value is used
+     * instead.
+     *
+     * @param fieldName name of field
+     * @return this builder.
+     */
+    public Builder removeField(String fieldName)
+    {
+      this.fields.remove(fieldName);
+      return this;
+    }
+
+    /** @return new immutable specification. */
+    public JobSpec build()
+    {
+      return new JobSpec(new LinkedHashMap<String,ContentBody>(this.fields));
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Split a file of MEDLINE formatted citations into parts of roughly
+ * equal size.  Parts are only cut where a new citation starts: a
+ * "PMID-" or "UI  -" line at the start of the file or following a
+ * blank line.
+ */
+public final class MedlineSplitter
+{
+  private MedlineSplitter()
+  {
+    // static-only access
+  }
+
+  /**
+   * Determine if line starts a citation.
+   *
+   * @param line line of input
+   * @param afterBlank true if previous line was blank or line is first
+   * @return true if line starts a new citation.
+   */
+  public static boolean isCitationStart(String line, boolean afterBlank)
+  {
+    return afterBlank && (line.startsWith("PMID-") || line.startsWith("UI  -"));
+  }
+
+  /**
+   * Split input into at most parts files in directory.  Input is
+   * copied byte for byte, including its line terminators;
+   * concatenating the parts gives the input.
+   *
+   * @param input file of MEDLINE citations
+   * @param parts number of parts wanted
+   * @param directory directory to write parts to
+   * @return part files in input order, fewer than parts if input
+   *         contains fewer citations.
+   * @throws IOException I/O exception
+   */
+  public static List<Path> split(Path input, int parts, Path directory)
+    throws IOException
+  {
+    long target = Math.max(1, Files.size(input) / Math.max(1, parts));
+    List<Path> files = new ArrayList<Path>();
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(input))) {
+      OutputStream out = null;
+      long written = 0;
+      boolean afterBlank = true;
+      int terminator;
+      try {
+	while ((terminator = readLine(in, line)) >= 0) {
+	  // ISO-8859-1 maps every byte to a char, the prefixes are ASCII.
+	  String text = new String(line.toByteArray(), 0, line.size() - terminator,
+				   StandardCharsets.ISO_8859_1);
+	  if ((out == null) ||
+	      ((written >= target) && (files.size() < parts) &&
+	       isCitationStart(text, afterBlank))) {
+	    if (out != null) {
+	      out.close();
+	    }
+	    Path part = directory.resolve(String.format("part%05d.txt", files.size()));
+	    files.add(part);
+	    out = new BufferedOutputStream(Files.newOutputStream(part));
+	    written = 0;
+	  }
+	  line.writeTo(out);
+	  written += line.size();
+	  afterBlank = text.trim().isEmpty();
+	}
+      } finally {
+	if (out != null) {
+	  out.close();
+	}
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Read a line including its terminator, "\n", "\r\n" or "\r".
+   *
+   * @param in input, must support mark
+   * @param line receives bytes of line, replacing its content
+   * @return length of terminator, or -1 at end of input.
+   */
+  static int readLine(InputStream in, ByteArrayOutputStream line)
+    throws IOException
+  {
+    line.reset();
+    int b;
+    while ((b = in.read()) >= 0) {
+      line.write(b);
+      if (b == '\n')
+	return 1;
+      if (b == '\r') {
+	in.mark(1);
+	if (in.read() == '\n') {
+	  line.write('\n');
+	  return 2;
+	}
+	in.reset();
+	return 1;
+      }
+    }
+    return (line.size() > 0) ? 0 : -1;
+  }
+}
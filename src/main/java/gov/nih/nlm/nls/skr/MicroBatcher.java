@@ -0,0 +1,280 @@
+package gov.nih.nlm.nls.skr;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.StringBody;
+
+/**
+ * Collects short documents from many callers and sends them as one
+ * Generic Batch job in single line delimited input with ID format
+ * (SingLinePMID), completing each caller's future with the result
+ * lines of its document.
+ * <pre>
+ * GenericObject job = new GenericObject();
+ * job.setField("Email_Address", emailAddress);
+ * job.setField("Batch_Command", "MTI -opt1L_DCMS -E");
+ * try (MicroBatcher batcher = new MicroBatcher(job)) {
+ *   CompletableFuture&lt;String&gt; result = batcher.submit("10", title);
+ *   ...
+ * }
+ * </pre>
+ *
+ * A batch is sent when it holds skrapi.microbatch.maxdocs documents
+ * or skrapi.microbatch.delay milliseconds after its first document
+ * arrived, whichever is first.  Documents are numbered within their
+ * batch; result lines starting with "number|", as written by MTI and
+ * the fielded MetaMap and SemRep output, are returned to the caller
+ * with the caller's ID in place of the number.  A document without
+ * result lines completes with an empty string.  If the batch fails,
+ * or its Batch_Command contains -E and the result is missing the end
+ * of result marker, every future of the batch completes
+ * exceptionally.  Cancelling a future does not remove its document
+ * from a batch.
+ *
+ * <dl>
+ *  <dt>skrapi.microbatch.maxdocs
+ *  <dd>maximum number of documents of a batch (default 100)
+ *  <dt>skrapi.microbatch.delay
+ *  <dd>maximum time a document waits for its batch to fill, in milliseconds (default 500)
+ * </dl>
+ */
+public final class MicroBatcher
+  implements AutoCloseable
+{
+  /** maximum number of documents of a batch, property: skrapi.microbatch.maxdocs */
+  public static final int defaultMaxDocuments =
+    Integer.parseInt(System.getProperty("skrapi.microbatch.maxdocs", "100"));
+
+  /** maximum wait for a batch to fill in milliseconds, property: skrapi.microbatch.delay */
+  public static final long defaultDelay =
+    Long.parseLong(System.getProperty("skrapi.microbatch.delay", "500"));
+
+  /** sends batches whose delay has expired */
+  private static final ScheduledExecutorService timer =
+    Executors.newSingleThreadScheduledExecutor
+    (SubmissionExecutors.daemonThreads("skrapi-microbatch-"));
+
+  /** A document waiting for its batch to be sent. */
+  private static final class Document
+  {
+    final String id;
+    final String text;
+    final CompletableFuture<String> future = new CompletableFuture<String>();
+
+    Document(String id, String text)
+    {
+      this.id = id;
+      this.text = text;
+    }
+  }
+
+  private final GenericObject job;
+  private final int maxDocuments;
+  private final long delay;
+  private final Executor executor;
+  private List<Document> pending = new ArrayList<Document>();
+  private ScheduledFuture<?> deadline = null;
+  private boolean closed = false;
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong documents = new AtomicLong();
+
+  /**
+   * Creates a new <code>MicroBatcher</code> with the limits of
+   * skrapi.microbatch.maxdocs and skrapi.microbatch.delay.
+   *
+   * @param job template batch job supplying all fields except
+   *            UpLoad_File and SingLinePMID
+   * @throws IllegalArgumentException if job is an interactive job
+   */
+  public MicroBatcher(GenericObject job)
+  {
+    this(job, defaultMaxDocuments, defaultDelay, TimeUnit.MILLISECONDS,
+	 AsyncSubmission.defaultExecutor);
+  }
+
+  /**
+   * Creates a new <code>MicroBatcher</code>.
+   *
+   * @param job template batch job supplying all fields except
+   *            UpLoad_File and SingLinePMID
+   * @param maxDocuments maximum number of documents of a batch
+   * @param delay maximum time a document waits for its batch to fill
+   * @param unit unit of delay
+   * @param executor executor that runs the submission of each batch
+   * @throws IllegalArgumentException if job is an interactive job or
+   *         maxDocuments is not positive
+   */
+  public MicroBatcher(GenericObject job, int maxDocuments, long delay, TimeUnit unit,
+		      Executor executor)
+  {
+    if (! job.isBatch()) {
+      throw new IllegalArgumentException("micro batches require a Generic Batch job");
+    }
+    if (maxDocuments < 1) {
+      throw new IllegalArgumentException("maxDocuments must be positive: " + maxDocuments);
+    }
+    this.job = job;
+    this.maxDocuments = maxDocuments;
+    this.delay = unit.toMillis(delay);
+    this.executor = executor;
+  }
+
+  /**
+   * Add a document to the current batch.
+   *
+   * @param id ID of document, returned in its result lines; must not
+   *           contain '|' or line breaks
+   * @param text text of document, line breaks are sent as spaces
+   * @return future completed with the result lines of the document.
+   */
+  public CompletableFuture<String> submit(String id, String text)
+  {
+    if ((id.indexOf('|') >= 0) || (id.indexOf('\n') >= 0) || (id.indexOf('\r') >= 0)) {
+      throw new IllegalArgumentException("invalid document id: " + id);
+    }
+    Document document = new Document(id, text.replaceAll("[\\r\\n]+", " "));
+    List<Document> full = null;
+    synchronized (this) {
+      if (this.closed) {
+	throw new IllegalStateException("micro batcher is closed");
+      }
+      this.pending.add(document);
+      if (this.pending.size() >= this.maxDocuments) {
+	full = this.takePending();
+      } else if (this.pending.size() == 1) {
+	this.deadline = timer.schedule(this::flush, this.delay, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      this.send(full);
+    }
+    return document.future;
+  }
+
+  /** Send the current batch now, if it holds any documents. */
+  public void flush()
+  {
+    List<Document> batch;
+    synchronized (this) {
+      batch = this.takePending();
+    }
+    if (! batch.isEmpty()) {
+      this.send(batch);
+    }
+  }
+
+  /** Remove the documents of the current batch, caller holds lock. */
+  private List<Document> takePending()
+  {
+    List<Document> batch = this.pending;
+    this.pending = new ArrayList<Document>();
+    if (this.deadline != null) {
+      this.deadline.cancel(false);
+      this.deadline = null;
+    }
+    return batch;
+  }
+
+  /** Submit batch and complete the futures of its documents. */
+  private void send(final List<Document> batch)
+  {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < batch.size(); i++) {
+      input.append(i + 1).append('|').append(batch.get(i).text).append('\n');
+    }
+    final Map<String,ContentBody> form = this.job.snapshotForm();
+    SpooledFileBody.release
+      (form.put("UpLoad_File",
+		new ByteArrayBody(input.toString().getBytes(StandardCharsets.UTF_8),
+				  ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8),
+				  "microbatch.txt")));
+    SpooledFileBody.release
+      (form.put("SingLinePMID", new StringBody("true", ContentType.TEXT_PLAIN)));
+    final boolean expectEot =
+      GenericObject.hasOption(GenericObject.bodyText(form.get("Batch_Command")), "-E");
+    this.batches.incrementAndGet();
+    this.documents.addAndGet(batch.size());
+    GenericObject.releaseWhenComplete
+      (AsyncSubmission.start(abort -> this.job.requestResult(form, abort),
+			     this.executor, 0, TimeUnit.MILLISECONDS), form)
+      .whenComplete((result, exception) -> {
+	  Throwable failure = exception;
+	  if ((failure == null) && expectEot &&
+	      ((result == null) || ! result.trim().endsWith(ChunkedSubmission.EOT_MARKER))) {
+	    failure = new TruncatedResultException("result of micro batch is missing " +
+						   ChunkedSubmission.EOT_MARKER);
+	  }
+	  if (failure != null) {
+	    for (Document document: batch) {
+	      document.future.completeExceptionally(failure);
+	    }
+	  } else {
+	    demultiplex(batch, result);
+	  }
+	});
+  }
+
+  /**
+   * Complete the future of each document with its result lines.
+   *
+   * @param batch documents in batch order
+   * @param result server result of batch
+   */
+  private static void demultiplex(List<Document> batch, String result)
+  {
+    Map<String,StringBuilder> lines = new HashMap<String,StringBuilder>();
+    for (int i = 0; i < batch.size(); i++) {
+      lines.put(Integer.toString(i + 1), new StringBuilder());
+    }
+    for (String line: ((result == null) ? "" : result).split("\n")) {
+      int bar = line.indexOf('|');
+      if (bar < 0)
+	continue;
+      StringBuilder sb = lines.get(line.substring(0, bar));
+      if (sb != null) {
+	int i = Integer.parseInt(line.substring(0, bar)) - 1;
+	sb.append(batch.get(i).id).append(line, bar, line.length()).append('\n');
+      }
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).future.complete(lines.get(Integer.toString(i + 1)).toString());
+    }
+  }
+
+  /** @return number of batches sent. */
+  public long getBatches() {
+    return this.batches.get();
+  }
+
+  /** @return number of documents sent. */
+  public long getDocuments() {
+    return this.documents.get();
+  }
+
+  /** Send the current batch and refuse further documents. */
+  public void close()
+  {
+    synchronized (this) {
+      this.closed = true;
+    }
+    this.flush();
+  }
+
+  public String toString() {
+    return "MicroBatcher[batches=" + this.getBatches() + ", documents=" + this.getDocuments() + "]";
+  }
+}
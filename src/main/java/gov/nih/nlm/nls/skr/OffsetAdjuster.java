@@ -0,0 +1,66 @@
+package gov.nih.nlm.nls.skr;
+
+/**
+ * Rewrites the character positions in the result of a chunk of text
+ * so that they refer to the original, unsplit text.
+ */
+public interface OffsetAdjuster
+{
+  /**
+   * Adjust positions in result of chunk.
+   *
+   * @param result server result for chunk
+   * @param offset offset of chunk in original text
+   * @return result with positions relative to original text.
+   */
+  String adjust(String result, int offset);
+
+  /** Leave result unchanged. */
+  OffsetAdjuster NONE = (result, offset) -> result;
+
+  /**
+   * Shift every StartPos/Length pair outside of quoted text, as found
+   * in MetaMap machine output (-q) and fielded MMI output (-N).
+   * Quotations end at the end of a line.
+   */
+  OffsetAdjuster POSITIONAL = (result, offset) -> {
+    if (offset == 0)
+      return result;
+    StringBuilder sb = new StringBuilder(result.length() + 64);
+    char quote = 0;
+    int i = 0;
+    int n = result.length();
+    while (i < n) {
+      char c = result.charAt(i);
+      if (quote != 0) {
+	sb.append(c);
+	if (c == '\\' && i + 1 < n) {
+	  sb.append(result.charAt(++i));
+	} else if (c == quote || c == '\n') {
+	  quote = 0;
+	}
+	i++;
+      } else if ((c == '\'' || c == '"') &&
+		 ((i == 0) || ! Character.isLetterOrDigit(result.charAt(i - 1)))) {
+	// an apostrophe within a word does not start a quotation
+	quote = c;
+	sb.append(c);
+	i++;
+      } else if (Character.isDigit(c) &&
+		 ((i == 0) || ! Character.isLetterOrDigit(result.charAt(i - 1)))) {
+	int j = i;
+	while (j < n && Character.isDigit(result.charAt(j))) j++;
+	if (j + 1 < n && result.charAt(j) == '/' && Character.isDigit(result.charAt(j + 1))) {
+	  sb.append(Long.parseLong(result.substring(i, j)) + offset);
+	} else {
+	  sb.append(result, i, j);
+	}
+	i = j;
+      } else {
+	sb.append(c);
+	i++;
+      }
+    }
+    return sb.toString();
+  };
+}
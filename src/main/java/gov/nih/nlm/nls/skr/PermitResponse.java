@@ -0,0 +1,156 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+
+import gov.nih.nlm.nls.util.Governor;
+
+/**
+ * Response that releases the governor permit of its request when it
+ * is closed, see Transport.closing.  Every other method delegates to
+ * the wrapped response.
+ */
+final class PermitResponse
+  implements CloseableHttpResponse
+{
+  private final CloseableHttpResponse response;
+  private final Governor.Permit permit;
+
+  PermitResponse(CloseableHttpResponse response, Governor.Permit permit)
+  {
+    this.response = response;
+    this.permit = permit;
+  }
+
+  /** Close response, then release permit. */
+  public void close()
+    throws IOException
+  {
+    try {
+      this.response.close();
+    } finally {
+      this.permit.close();
+    }
+  }
+
+  public StatusLine getStatusLine() {
+    return this.response.getStatusLine();
+  }
+
+  public void setStatusLine(StatusLine statusline) {
+    this.response.setStatusLine(statusline);
+  }
+
+  public void setStatusLine(ProtocolVersion ver, int code) {
+    this.response.setStatusLine(ver, code);
+  }
+
+  public void setStatusLine(ProtocolVersion ver, int code, String reason) {
+    this.response.setStatusLine(ver, code, reason);
+  }
+
+  public void setStatusCode(int code) {
+    this.response.setStatusCode(code);
+  }
+
+  public void setReasonPhrase(String reason) {
+    this.response.setReasonPhrase(reason);
+  }
+
+  public HttpEntity getEntity() {
+    return this.response.getEntity();
+  }
+
+  public void setEntity(HttpEntity entity) {
+    this.response.setEntity(entity);
+  }
+
+  public Locale getLocale() {
+    return this.response.getLocale();
+  }
+
+  public void setLocale(Locale loc) {
+    this.response.setLocale(loc);
+  }
+
+  public ProtocolVersion getProtocolVersion() {
+    return this.response.getProtocolVersion();
+  }
+
+  public boolean containsHeader(String name) {
+    return this.response.containsHeader(name);
+  }
+
+  public Header[] getHeaders(String name) {
+    return this.response.getHeaders(name);
+  }
+
+  public Header getFirstHeader(String name) {
+    return this.response.getFirstHeader(name);
+  }
+
+  public Header getLastHeader(String name) {
+    return this.response.getLastHeader(name);
+  }
+
+  public Header[] getAllHeaders() {
+    return this.response.getAllHeaders();
+  }
+
+  public void addHeader(Header header) {
+    this.response.addHeader(header);
+  }
+
+  public void addHeader(String name, String value) {
+    this.response.addHeader(name, value);
+  }
+
+  public void setHeader(Header header) {
+    this.response.setHeader(header);
+  }
+
+  public void setHeader(String name, String value) {
+    this.response.setHeader(name, value);
+  }
+
+  public void setHeaders(Header[] headers) {
+    this.response.setHeaders(headers);
+  }
+
+  public void removeHeader(Header header) {
+    this.response.removeHeader(header);
+  }
+
+  public void removeHeaders(String name) {
+    this.response.removeHeaders(name);
+  }
+
+  public HeaderIterator headerIterator() {
+    return this.response.headerIterator();
+  }
+
+  public HeaderIterator headerIterator(String name) {
+    return this.response.headerIterator(name);
+  }
+
+  @SuppressWarnings("deprecation")
+  public org.apache.http.params.HttpParams getParams() {
+    return this.response.getParams();
+  }
+
+  @SuppressWarnings("deprecation")
+  public void setParams(org.apache.http.params.HttpParams params) {
+    this.response.setParams(params);
+  }
+
+  public String toString() {
+    return this.response.toString();
+  }
+}
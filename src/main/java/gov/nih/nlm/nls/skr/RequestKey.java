@@ -0,0 +1,140 @@
+package gov.nih.nlm.nls.skr;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.http.entity.mime.content.ContentBody;
+
+/**
+ * Key identifying the result of an interactive request: the service
+ * url and the normalized string fields of the form, such as APIText,
+ * COMMAND_ARGS and KSOURCE.  The service ticket, which changes with
+ * every request, and Email_Address, which does not affect the result,
+ * are not part of the key.  Line ends of APIText are normalized and
+ * trailing whitespace is removed; runs of whitespace in other fields
+ * are collapsed.
+ */
+public final class RequestKey
+{
+  /** fields that do not affect the result */
+  private static final String IGNORED_FIELD = "Email_Address";
+
+  private final byte[] bytes;
+  private final String digest;
+
+  private RequestKey(byte[] bytes)
+  {
+    this.bytes = bytes;
+    StringBuilder hex = new StringBuilder();
+    for (byte b: bytes) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    this.digest = hex.toString();
+  }
+
+  /**
+   * Key of a request.
+   *
+   * @param service url of service, without ticket
+   * @param form form elements of request
+   * @return key, or null if a form element other than a string, such
+   *         as a file, prevents the result from being cached.
+   */
+  public static RequestKey of(String service, Map<String,ContentBody> form)
+  {
+    TreeMap<String,String> fields = new TreeMap<String,String>();
+    for (Map.Entry<String,ContentBody> element: form.entrySet()) {
+      if (element.getKey().equals(IGNORED_FIELD))
+	continue;
+      String value = GenericObject.bodyText(element.getValue());
+      if (value == null)
+	return null;
+      fields.put(element.getKey(), normalize(element.getKey(), value));
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    update(digest, service);
+    for (Map.Entry<String,String> field: fields.entrySet()) {
+      update(digest, field.getKey());
+      update(digest, field.getValue());
+    }
+    return new RequestKey(digest.digest());
+  }
+
+  /**
+   * Normalize value of a field.
+   *
+   * @param name name of field
+   * @param value value of field
+   * @return normalized value.
+   */
+  static String normalize(String name, String value)
+  {
+    if (name.equals("APIText")) {
+      String text = value.replace("\r\n", "\n").replace('\r', '\n');
+      int end = text.length();
+      while ((end > 0) && Character.isWhitespace(text.charAt(end - 1))) {
+	end--;
+      }
+      return text.substring(0, end);
+    }
+    return value.trim().replaceAll("\\s+", " ");
+  }
+
+  /** Add length prefixed string to digest so that fields cannot run together. */
+  private static void update(MessageDigest digest, String value)
+  {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+    digest.update((byte)':');
+    digest.update(bytes);
+  }
+
+  /** @return hexadecimal SHA-256 digest of service and fields. */
+  public String getDigest() {
+    return this.digest;
+  }
+
+  /** @return copy of SHA-256 digest of service and fields. */
+  byte[] getDigestBytes() {
+    return this.bytes.clone();
+  }
+
+  /** @return first eight bytes of digest as a long. */
+  long longHash() {
+    return longHash(this.bytes);
+  }
+
+  /**
+   * First eight bytes of a digest as a long.
+   *
+   * @param digest SHA-256 digest
+   * @return hash of digest.
+   */
+  static long longHash(byte[] digest) {
+    long hash = 0;
+    for (int i = 0; i < 8; i++) {
+      hash = (hash << 8) | (digest[i] & 0xff);
+    }
+    return hash;
+  }
+
+  public boolean equals(Object other) {
+    return (other instanceof RequestKey) && ((RequestKey)other).digest.equals(this.digest);
+  }
+
+  public int hashCode() {
+    return this.digest.hashCode();
+  }
+
+  public String toString() {
+    return "RequestKey[" + this.digest + "]";
+  }
+}
@@ -0,0 +1,202 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.FileResourceFactory;
+import org.apache.http.impl.client.cache.HeapResourceFactory;
+import org.apache.http.impl.client.cache.ManagedHttpCacheStorage;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * Cache of interactive results keyed by RequestKey, stored with the
+ * storage and resource factories of httpclient-cache.  The
+ * interactive services are POST requests without HTTP caching
+ * headers, so the caching client of httpclient-cache would not cache
+ * them; its storage is used directly instead.  The least recently
+ * used entries are evicted when the cache holds more than
+ * skrapi.cache.maxentries results.  GenericObject caches only results
+ * of requests with -E, whose status and end of result marker it has
+ * checked.
+ *
+ * <dl>
+ *  <dt>skrapi.cache
+ *  <dd>none, heap or file (default none, caching disabled)
+ *  <dt>skrapi.cache.maxentries
+ *  <dd>maximum number of cached results (default 1000)
+ *  <dt>skrapi.cache.maxobjectsize
+ *  <dd>results longer than this many bytes are not cached (default 1048576)
+ *  <dt>skrapi.cache.ttl
+ *  <dd>seconds a result is used, 0 for no limit (default 86400)
+ *  <dt>skrapi.cache.dir
+ *  <dd>directory of results of the file cache (default: temporary directory)
+ * </dl>
+ */
+public final class ResultCache
+{
+  /** type of storage, property: skrapi.cache */
+  public static final String storageType = System.getProperty("skrapi.cache", "none");
+
+  /** maximum number of results, property: skrapi.cache.maxentries */
+  public static final int maxEntries =
+    Integer.parseInt(System.getProperty("skrapi.cache.maxentries", "1000"));
+
+  /** maximum size of a result in bytes, property: skrapi.cache.maxobjectsize */
+  public static final long maxObjectSize =
+    Long.parseLong(System.getProperty("skrapi.cache.maxobjectsize", "1048576"));
+
+  /** seconds a result is used, property: skrapi.cache.ttl */
+  public static final long timeToLive =
+    Long.parseLong(System.getProperty("skrapi.cache.ttl", "86400"));
+
+  private static final ResultCache instance = create();
+
+  private final ManagedHttpCacheStorage storage;
+  private final ResourceFactory resourceFactory;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong stores = new AtomicLong();
+
+  private ResultCache(ResourceFactory resourceFactory)
+  {
+    CacheConfig config = CacheConfig.custom()
+      .setMaxCacheEntries(maxEntries)
+      .setMaxObjectSize(maxObjectSize)
+      .build();
+    this.storage = new ManagedHttpCacheStorage(config);
+    this.resourceFactory = resourceFactory;
+  }
+
+  private static ResultCache create()
+  {
+    switch (storageType) {
+    case "none":
+      return null;
+    case "heap":
+      return new ResultCache(new HeapResourceFactory());
+    case "file":
+      try {
+	String dir = System.getProperty("skrapi.cache.dir");
+	File directory = (dir != null) ? new File(dir)
+	  : Files.createTempDirectory("skrapi_cache").toFile();
+	directory.mkdirs();
+	final ResultCache cache = new ResultCache(new FileResourceFactory(directory));
+	// resources of the file cache are files, delete them on exit
+	Runtime.getRuntime().addShutdownHook(new Thread(cache.storage::shutdown));
+	return cache;
+      } catch (IOException e) {
+	throw new IllegalStateException("unable to create result cache directory", e);
+      }
+    default:
+      throw new IllegalArgumentException("skrapi.cache must be none, heap or file, not " +
+					 storageType);
+    }
+  }
+
+  /** @return cache configured by skrapi.cache, or null if caching is disabled. */
+  public static ResultCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Get cached result of request.
+   *
+   * @param key key of request
+   * @return result, or null if not cached or expired.
+   * @throws IOException if the result cannot be read
+   */
+  public String get(RequestKey key)
+    throws IOException
+  {
+    HttpCacheEntry entry = this.storage.getEntry(key.getDigest());
+    if ((entry != null) && (timeToLive > 0) &&
+	(System.currentTimeMillis() - entry.getResponseDate().getTime() > timeToLive * 1000L)) {
+      this.storage.removeEntry(key.getDigest());
+      entry = null;
+    }
+    if (entry == null) {
+      this.misses.incrementAndGet();
+      return null;
+    }
+    this.hits.incrementAndGet();
+    ByteArrayOutputStream content = new ByteArrayOutputStream((int)entry.getResource().length());
+    try (InputStream in = entry.getResource().getInputStream()) {
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+	content.write(buffer, 0, count);
+      }
+    }
+    return new String(content.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Cache result of request, results larger than
+   * skrapi.cache.maxobjectsize are not cached.
+   *
+   * @param key key of request
+   * @param result result of request
+   * @throws IOException if the result cannot be stored
+   */
+  public void put(RequestKey key, String result)
+    throws IOException
+  {
+    byte[] content = result.getBytes(StandardCharsets.UTF_8);
+    InputLimit limit = new InputLimit(maxObjectSize);
+    Resource resource = this.resourceFactory.generate
+      (key.getDigest(), new ByteArrayInputStream(content), limit);
+    if (limit.isReached()) {
+      resource.dispose();
+      return;
+    }
+    Date now = new Date();
+    this.storage.putEntry
+      (key.getDigest(),
+       new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+			  new Header[0], resource));
+    this.stores.incrementAndGet();
+    // dispose resources of evicted entries
+    this.storage.cleanResources();
+  }
+
+  /** @return number of requests answered from the cache. */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /** @return number of requests not found in the cache. */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /** @return number of results stored in the cache. */
+  public long getStores() {
+    return this.stores.get();
+  }
+
+  /** @return fraction of lookups answered from the cache, 0 if none. */
+  public double getHitRatio() {
+    long lookups = this.hits.get() + this.misses.get();
+    return (lookups == 0) ? 0.0 : (double)this.hits.get() / lookups;
+  }
+
+  public String toString() {
+    return "ResultCache[" + storageType + ", hits=" + this.getHits() + ", misses=" +
+      this.getMisses() + ", stores=" + this.getStores() + "]";
+  }
+}
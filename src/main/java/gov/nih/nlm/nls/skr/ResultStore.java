@@ -0,0 +1,402 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import gov.nih.nlm.nls.util.LongHashIndex;
+
+/**
+ * Persistent store of results addressed by RequestKey, the hash of
+ * service, command arguments, knowledge source and normalized text.
+ * Results are appended to a data file, results.dat, and located
+ * through a memory-mapped hash index of the first eight bytes of the
+ * key, results.idx; the full key is kept with each result and
+ * checked on lookup.  When the data file grows beyond its maximum
+ * size the oldest results are dropped, keeping the newest half.
+ *
+ * A store is used by one JVM at a time.  If the JVM stops before the
+ * store is closed the index is rebuilt from the data file, dropping
+ * a partly written last result.  Lookups run concurrently; storing
+ * and compacting take an exclusive lock.
+ *
+ * <dl>
+ *  <dt>skrapi.store.dir
+ *  <dd>directory of the store used by GenericObject (default: none, store disabled)
+ *  <dt>skrapi.store.maxbytes
+ *  <dd>maximum size of the data file (default 1073741824)
+ * </dl>
+ */
+public final class ResultStore
+  implements Closeable
+{
+  /** directory of default store, property: skrapi.store.dir */
+  public static final String defaultDirectory = System.getProperty("skrapi.store.dir");
+
+  /** maximum size of data file, property: skrapi.store.maxbytes */
+  public static final long defaultMaxBytes =
+    Long.parseLong(System.getProperty("skrapi.store.maxbytes", "1073741824"));
+
+  /** record header: length, digest, time, crc */
+  private static final int RECORD_HEADER = 4 + 32 + 8 + 4;
+
+  private static ResultStore defaultStore = null;
+  private static boolean defaultOpened = false;
+
+  private final Path directory;
+  private final long maxBytes;
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+  private FileChannel data;
+  private LongHashIndex index;
+  /** lookups read the index and data file, put and compact replace
+   * them; a ReentrantReadWriteLock rather than a monitor so that
+   * virtual threads are not pinned during file I/O */
+  private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong compactions = new AtomicLong();
+
+  private ResultStore(Path directory, long maxBytes, FileChannel lockChannel, FileLock lock)
+  {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.lockChannel = lockChannel;
+    this.lock = lock;
+  }
+
+  /**
+   * Open store, creating it if needed.
+   *
+   * @param directory directory of store
+   * @param maxBytes maximum size of data file
+   * @return open store.
+   * @throws IOException if the store cannot be opened or is in use
+   */
+  public static ResultStore open(Path directory, long maxBytes)
+    throws IOException
+  {
+    Files.createDirectories(directory);
+    FileChannel lockChannel = FileChannel.open(directory.resolve("results.lock"),
+					       StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock = null;
+    try {
+      try {
+	lock = lockChannel.tryLock();
+      } catch (OverlappingFileLockException e) {
+	// already open in this JVM
+      }
+      if (lock == null) {
+	throw new IOException("result store " + directory + " is already open");
+      }
+      ResultStore store = new ResultStore(directory, maxBytes, lockChannel, lock);
+      store.openFiles();
+      return store;
+    } catch (IOException | RuntimeException e) {
+      lockChannel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Store configured by skrapi.store.dir, opened on first use and
+   * closed when the JVM exits.
+   *
+   * @return default store, or null if no store is configured or it
+   *         cannot be opened.
+   */
+  public static synchronized ResultStore getDefault()
+  {
+    if (! defaultOpened) {
+      defaultOpened = true;
+      if (defaultDirectory != null) {
+	try {
+	  defaultStore = open(Paths.get(defaultDirectory), defaultMaxBytes);
+	  final ResultStore store = defaultStore;
+	  Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	      try {
+		store.close();
+	      } catch (IOException e) {
+		System.err.println("unable to close result store: " + e);
+	      }
+	    }));
+	} catch (IOException e) {
+	  System.err.println("result store disabled: " + e);
+	}
+      }
+    }
+    return defaultStore;
+  }
+
+  private void openFiles()
+    throws IOException
+  {
+    this.data = FileChannel.open(this.directory.resolve("results.dat"), StandardOpenOption.CREATE,
+				 StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.index = LongHashIndex.open(this.directory.resolve("results.idx"), 1024);
+    if (this.index.getWatermark() != this.data.size()) {
+      this.rebuildIndex();
+    }
+  }
+
+  /**
+   * Index every complete record of the data file, truncating a
+   * partly written last record.
+   */
+  private void rebuildIndex()
+    throws IOException
+  {
+    this.index.setWatermark(-1);
+    this.index.clear();
+    long position = 0;
+    long size = this.data.size();
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+    byte[] digest = new byte[32];
+    while (position + RECORD_HEADER <= size) {
+      header.clear();
+      readFully(this.data, header, position);
+      header.flip();
+      int length = header.getInt();
+      header.get(digest);
+      if ((length < 0) || (position + RECORD_HEADER + length > size))
+	break;
+      this.index.put(RequestKey.longHash(digest), position);
+      position += RECORD_HEADER + length;
+    }
+    this.data.truncate(position);
+    this.index.setWatermark(position);
+    this.index.force();
+  }
+
+  /**
+   * Get stored result.
+   *
+   * @param key key of request
+   * @return result, or null if not stored.
+   * @throws IOException if the store cannot be read
+   */
+  public String get(RequestKey key)
+    throws IOException
+  {
+    this.rwLock.readLock().lock();
+    try {
+      long position = this.index.get(key.longHash());
+      if (position >= 0) {
+	String result = this.read(position, key.getDigestBytes());
+	if (result != null) {
+	  this.hits.incrementAndGet();
+	  return result;
+	}
+      }
+    } finally {
+      this.rwLock.readLock().unlock();
+    }
+    this.misses.incrementAndGet();
+    return null;
+  }
+
+  /** Read record at position if it has the digest and is intact. */
+  private String read(long position, byte[] digest)
+    throws IOException
+  {
+    if (position + RECORD_HEADER > this.data.size())
+      return null;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+    readFully(this.data, header, position);
+    header.flip();
+    int length = header.getInt();
+    byte[] stored = new byte[32];
+    header.get(stored);
+    header.getLong();
+    int crc = header.getInt();
+    if (! Arrays.equals(stored, digest) || (length < 0) ||
+	(position + RECORD_HEADER + length > this.data.size()))
+      return null;
+    ByteBuffer content = ByteBuffer.allocate(length);
+    readFully(this.data, content, position + RECORD_HEADER);
+    CRC32 check = new CRC32();
+    check.update(content.array(), 0, length);
+    if ((int)check.getValue() != crc)
+      return null;
+    return new String(content.array(), 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Store result, compacting the store if it exceeds its maximum
+   * size.  Results longer than half the maximum size are not stored.
+   * Callers store only complete results, a stored result is returned
+   * until it is dropped by compaction.
+   *
+   * @param key key of request
+   * @param result result of request
+   * @throws IOException if the store cannot be written
+   */
+  public void put(RequestKey key, String result)
+    throws IOException
+  {
+    byte[] content = result.getBytes(StandardCharsets.UTF_8);
+    if (RECORD_HEADER + content.length > this.maxBytes / 2)
+      return;
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, content.length);
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + content.length);
+    record.putInt(content.length).put(key.getDigestBytes())
+      .putLong(System.currentTimeMillis()).putInt((int)crc.getValue()).put(content);
+    record.flip();
+    this.rwLock.writeLock().lock();
+    try {
+      long position = this.data.size();
+      // the index is only valid again once the record is complete
+      this.index.setWatermark(-1);
+      while (record.hasRemaining()) {
+	this.data.write(record, position + record.position());
+      }
+      this.index.put(key.longHash(), position);
+      this.index.setWatermark(this.data.size());
+      if (this.data.size() > this.maxBytes) {
+	this.compact(this.maxBytes / 2);
+      }
+    } finally {
+      this.rwLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Drop the oldest results so that the data file holds at most
+   * targetBytes.
+   *
+   * @param targetBytes size of data file after compaction
+   * @throws IOException if the store cannot be rewritten
+   */
+  public void compact(long targetBytes)
+    throws IOException
+  {
+    this.rwLock.writeLock().lock();
+    try {
+      this.rewrite(targetBytes);
+    } finally {
+      this.rwLock.writeLock().unlock();
+    }
+  }
+
+  /** Compact the data file, caller holds the write lock. */
+  private void rewrite(long targetBytes)
+    throws IOException
+  {
+    long size = this.data.size();
+    long position = 0;
+    ByteBuffer length = ByteBuffer.allocate(4);
+    while ((size - position > targetBytes) && (position + RECORD_HEADER <= size)) {
+      length.clear();
+      readFully(this.data, length, position);
+      position += RECORD_HEADER + length.getInt(0);
+    }
+    position = Math.min(position, size);
+    Path file = this.directory.resolve("results.dat");
+    Path temp = this.directory.resolve("results.dat.tmp");
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+					    StandardOpenOption.TRUNCATE_EXISTING,
+					    StandardOpenOption.WRITE)) {
+      long copied = 0;
+      while (position + copied < size) {
+	copied += this.data.transferTo(position + copied, size - position - copied, out);
+      }
+      out.force(true);
+    }
+    this.index.setWatermark(-1);
+    this.index.force();
+    this.data.close();
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    this.data = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.rebuildIndex();
+    this.compactions.incrementAndGet();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+    throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+	throw new IOException("unexpected end of result store");
+    }
+  }
+
+  /** @return number of results in store. */
+  public int size() {
+    this.rwLock.readLock().lock();
+    try {
+      return this.index.size();
+    } finally {
+      this.rwLock.readLock().unlock();
+    }
+  }
+
+  /** @return size of data file in bytes. */
+  public long getDataBytes() throws IOException {
+    this.rwLock.readLock().lock();
+    try {
+      return this.data.size();
+    } finally {
+      this.rwLock.readLock().unlock();
+    }
+  }
+
+  /** @return number of lookups answered from the store. */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /** @return number of lookups not found in the store. */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /** @return number of compactions since the store was opened. */
+  public long getCompactions() {
+    return this.compactions.get();
+  }
+
+  /**
+   * Force results to disk and close store.
+   *
+   * @throws IOException if the store cannot be written
+   */
+  public void close()
+    throws IOException
+  {
+    this.rwLock.writeLock().lock();
+    try {
+      if (! this.lockChannel.isOpen())
+	return;
+      try {
+	this.data.force(false);
+	this.index.setWatermark(this.data.size());
+	this.index.close();
+	this.data.close();
+      } finally {
+	this.lock.release();
+	this.lockChannel.close();
+      }
+    } finally {
+      this.rwLock.writeLock().unlock();
+    }
+  }
+
+  public String toString() {
+    return "ResultStore[" + this.directory + ", hits=" + this.getHits() +
+      ", misses=" + this.getMisses() + "]";
+  }
+}
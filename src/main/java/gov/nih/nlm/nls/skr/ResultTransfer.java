@@ -0,0 +1,115 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Copy a server response to a channel, dropping "NOT DONE LOOP"
+ * keep-alive lines.
+ *
+ * The response is filtered a buffer at a time at the byte level, line
+ * endings and character encoding are passed through unchanged.
+ * Buffer size is set by property skrapi.transfer.buffersize (bytes,
+ * default 65536).
+ */
+final class ResultTransfer
+{
+  /** size of transfer buffer, property: skrapi.transfer.buffersize */
+  static final int bufferSize =
+    Integer.parseInt(System.getProperty("skrapi.transfer.buffersize", "65536"));
+
+  private static final byte[] PREFIX =
+    GenericObject.KEEP_ALIVE_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+  private ResultTransfer()
+  {
+    // static-only access
+  }
+
+  /**
+   * Copy input to channel dropping keep-alive lines.
+   *
+   * @param input server response content
+   * @param output destination of response
+   * @return transfer statistics
+   * @throws IOException I/O exception
+   */
+  static TransferStats copy(InputStream input, WritableByteChannel output)
+    throws IOException
+  {
+    long start = System.nanoTime();
+    long bytesRead = 0;
+    long bytesWritten = 0;
+    ReadableByteChannel in = Channels.newChannel(input);
+    ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+    byte[] data = buffer.array();
+    boolean lineStart = true; // next byte starts a line
+    boolean skipping = false; // inside a keep-alive line
+    int matched = 0;          // prefix bytes held back at start of line
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      bytesRead += n;
+      int run = 0;              // start of bytes to be written
+      for (int i = 0; i < n; i++) {
+	byte b = data[i];
+	if (skipping) {
+	  if (b == '\n') {
+	    skipping = false;
+	    lineStart = true;
+	    run = i + 1;
+	  }
+	} else if (lineStart) {
+	  if (b == PREFIX[matched]) {
+	    if (matched == 0) {
+	      bytesWritten += write(output, buffer, run, i);
+	    }
+	    matched++;
+	    if (matched == PREFIX.length) {
+	      skipping = true;
+	      lineStart = false;
+	      matched = 0;
+	    }
+	    run = i + 1;
+	  } else {
+	    if (matched > 0) {
+	      bytesWritten += write(output, ByteBuffer.wrap(PREFIX, 0, matched), 0, matched);
+	      matched = 0;
+	      run = i;
+	    }
+	    lineStart = (b == '\n');
+	  }
+	} else if (b == '\n') {
+	  lineStart = true;
+	}
+      }
+      if (! skipping && (matched == 0)) {
+	bytesWritten += write(output, buffer, run, n);
+      }
+      buffer.clear();
+    }
+    if (matched > 0) {
+      bytesWritten += write(output, ByteBuffer.wrap(PREFIX, 0, matched), 0, matched);
+    }
+    return new TransferStats(bytesRead, bytesWritten, System.nanoTime() - start);
+  }
+
+  /** Write bytes [from, to) of buffer to channel. */
+  private static long write(WritableByteChannel output, ByteBuffer buffer, int from, int to)
+    throws IOException
+  {
+    if (to <= from)
+      return 0;
+    buffer.limit(to);
+    buffer.position(from);
+    while (buffer.hasRemaining()) {
+      output.write(buffer);
+    }
+    buffer.limit(buffer.capacity());
+    return to - from;
+  }
+}
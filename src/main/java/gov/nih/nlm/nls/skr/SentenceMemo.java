@@ -0,0 +1,270 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.StringBody;
+
+/**
+ * Memoizes interactive MetaMap machine output (-q) per sentence.  The
+ * APIText is split into sentences (see TextChunker.sentences), each
+ * sentence is looked up in an in-memory table and in the result store
+ * of the job, and the sentences not found are sent as one request,
+ * separated by blank lines.  The utterances of the response are
+ * assigned to sentences by their position, remembered relative to
+ * their sentence and spliced back together with positions relative
+ * to the original text and utterances numbered in order.  Sentences
+ * and headers are kept under keys of their own, marked by the form
+ * element _skrapi.memo, so they never answer an ordinary request of
+ * the same text.  COMMAND_ARGS must contain -E as well as -q, so
+ * that only responses whose end of result marker was checked are
+ * memoized.
+ *
+ * The result holds the header of the response, such as args, with
+ * empty aas and neg_list terms: acronyms and negations are found per
+ * citation by MetaMap and are not reconstructed from sentences.
+ * Acronyms defined in one sentence are not expanded in others.
+ *
+ * <dl>
+ *  <dt>skrapi.sentencememo.maxentries
+ *  <dd>maximum number of sentences kept in memory (default 10000)
+ * </dl>
+ */
+public final class SentenceMemo
+{
+  /** maximum number of sentences kept in memory, property: skrapi.sentencememo.maxentries */
+  public static final int maxEntries =
+    Integer.parseInt(System.getProperty("skrapi.sentencememo.maxentries", "10000"));
+
+  /** separates sentences of a packed request */
+  private static final String SEPARATOR = "\n\n";
+
+  /** position of an utterance: StartPos/Length followed by the replacement list */
+  private static final Pattern UTTERANCE_POSITION = Pattern.compile(",(\\d+)/(\\d+),\\[");
+
+  /** form element added to the keys of memoized parts, naming the part */
+  static final String MEMO_FIELD = "_skrapi.memo";
+
+  private static final Map<RequestKey,String> memo =
+    new LinkedHashMap<RequestKey,String>(256, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<RequestKey,String> eldest) {
+	return this.size() > maxEntries;
+      }
+    };
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong requests = new AtomicLong();
+
+  private SentenceMemo()
+  {
+    // static-only access
+  }
+
+  /**
+   * Process text sentence by sentence, requesting only sentences that
+   * are not memoized.
+   *
+   * @param job job to submit the request through
+   * @param service url of interactive MetaMap service of job
+   * @param form form elements of job, APIText is replaced by the packed sentences
+   * @param text full text to be processed
+   * @return MetaMap machine output for text.
+   * @throws IOException if the request of the packed sentences fails
+   */
+  static String run(GenericObject job, String service, Map<String,ContentBody> form,
+		    String text)
+    throws IOException
+  {
+    String args = GenericObject.bodyText(form.get("COMMAND_ARGS"));
+    if (! GenericObject.hasOption(args, "-q")) {
+      throw new IllegalArgumentException("sentence memoization requires MetaMap machine output (-q)");
+    }
+    // a truncated response or error page must not be memoized
+    if (! GenericObject.hasOption(args, "-E")) {
+      throw new IllegalArgumentException("sentence memoization requires the end of result marker (-E)");
+    }
+    ResultStore store = job.resultStore;
+
+    Map<String,ContentBody> headerForm = new HashMap<String,ContentBody>(form);
+    headerForm.remove("APIText");
+    headerForm.put(MEMO_FIELD, new StringBody("header", ContentType.TEXT_PLAIN));
+    RequestKey headerKey = RequestKey.of(service, headerForm);
+    if (headerKey == null) {
+      throw new IllegalArgumentException("sentence memoization requires string form elements");
+    }
+    String header = lookup(headerKey, store);
+
+    List<TextChunker.Chunk> sentences = TextChunker.sentences(text);
+    String[] results = new String[sentences.size()];
+    RequestKey[] keys = new RequestKey[sentences.size()];
+    List<Integer> missing = new ArrayList<Integer>();
+    for (int i = 0; i < sentences.size(); i++) {
+      Map<String,ContentBody> sentenceForm = withText(form, sentences.get(i).getText());
+      sentenceForm.put(MEMO_FIELD, new StringBody("sentence", ContentType.TEXT_PLAIN));
+      keys[i] = RequestKey.of(service, sentenceForm);
+      results[i] = lookup(keys[i], store);
+      if (results[i] == null) {
+	missing.add(i);
+	misses.incrementAndGet();
+      } else {
+	hits.incrementAndGet();
+      }
+    }
+    if ((header == null) && missing.isEmpty() && ! sentences.isEmpty()) {
+      // the header of the response is needed, request the first sentence again
+      missing.add(0);
+    }
+
+    if (! missing.isEmpty()) {
+      StringBuilder packed = new StringBuilder();
+      int[] offsets = new int[missing.size()];
+      for (int j = 0; j < missing.size(); j++) {
+	offsets[j] = packed.length();
+	packed.append(sentences.get(missing.get(j)).getText()).append(SEPARATOR);
+      }
+      requests.incrementAndGet();
+      String response = job.requestResult(withText(form, packed.toString()), null);
+      StringBuilder head = new StringBuilder();
+      StringBuilder[] blocks = new StringBuilder[missing.size()];
+      for (int j = 0; j < blocks.length; j++) {
+	blocks[j] = new StringBuilder();
+      }
+      int current = -1;
+      for (String line: ((response == null) ? "" : response).split("\n")) {
+	if (line.trim().equals(ChunkedSubmission.EOT_MARKER))
+	  continue;
+	if (line.startsWith("utterance(")) {
+	  current = sentenceAt(offsets, utterancePosition(line));
+	}
+	if (current < 0) {
+	  head.append(emptyCitationTerm(line)).append('\n');
+	} else {
+	  blocks[current].append(line).append('\n');
+	}
+      }
+      if (header == null) {
+	header = head.toString();
+	remember(headerKey, header, store);
+      }
+      for (int j = 0; j < missing.size(); j++) {
+	int i = missing.get(j);
+	results[i] = OffsetAdjuster.POSITIONAL.adjust(blocks[j].toString(), -offsets[j]);
+	remember(keys[i], results[i], store);
+      }
+    }
+
+    StringBuilder sb = new StringBuilder((header == null) ? "" : header);
+    int utterance = 0;
+    for (int i = 0; i < sentences.size(); i++) {
+      String result = OffsetAdjuster.POSITIONAL.adjust(results[i], sentences.get(i).getOffset());
+      for (String line: result.split("\n")) {
+	if (line.isEmpty())
+	  continue;
+	String renumbered = ChunkedSubmission.renumberUtterance(line, utterance + 1);
+	if (renumbered != null) {
+	  utterance++;
+	  line = renumbered;
+	}
+	sb.append(line).append('\n');
+      }
+    }
+    sb.append(ChunkedSubmission.EOT_MARKER).append('\n');
+    return sb.toString();
+  }
+
+  private static Map<String,ContentBody> withText(Map<String,ContentBody> form, String text)
+  {
+    Map<String,ContentBody> copy = new HashMap<String,ContentBody>(form);
+    copy.put("APIText", new StringBody(text, ContentType.TEXT_PLAIN));
+    return copy;
+  }
+
+  /** @return StartPos of an utterance line, or -1 if it has none. */
+  static int utterancePosition(String line)
+  {
+    Matcher m = UTTERANCE_POSITION.matcher(line);
+    int position = -1;
+    while (m.find()) {
+      position = Integer.parseInt(m.group(1));
+    }
+    return position;
+  }
+
+  /** @return index of packed sentence containing position. */
+  private static int sentenceAt(int[] offsets, int position)
+  {
+    int j = 0;
+    while ((j + 1 < offsets.length) && (offsets[j + 1] <= position)) j++;
+    return j;
+  }
+
+  /** Replace the citation level acronym and negation lists by empty lists. */
+  private static String emptyCitationTerm(String line)
+  {
+    if (line.startsWith("aas("))
+      return "aas([]).";
+    if (line.startsWith("neg_list("))
+      return "neg_list([]).";
+    return line;
+  }
+
+  private static String lookup(RequestKey key, ResultStore store)
+    throws IOException
+  {
+    synchronized (memo) {
+      String result = memo.get(key);
+      if (result != null)
+	return result;
+    }
+    String result = (store == null) ? null : store.get(key);
+    if (result != null) {
+      synchronized (memo) {
+	memo.put(key, result);
+      }
+    }
+    return result;
+  }
+
+  private static void remember(RequestKey key, String result, ResultStore store)
+    throws IOException
+  {
+    synchronized (memo) {
+      memo.put(key, result);
+    }
+    if (store != null) {
+      store.put(key, result);
+    }
+  }
+
+  /** @return number of sentences found in memory or in a result store. */
+  public static long getHits() {
+    return hits.get();
+  }
+
+  /** @return number of sentences sent to the server. */
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  /** @return number of packed requests sent to the server. */
+  public static long getRequests() {
+    return requests.get();
+  }
+
+  /** Forget all sentences kept in memory. */
+  public static void clear() {
+    synchronized (memo) {
+      memo.clear();
+    }
+  }
+}
@@ -0,0 +1,384 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+
+/**
+ * Runs a large Generic Batch job as several smaller jobs in parallel.
+ *
+ * The MEDLINE input is split at citation boundaries into parts, each
+ * part is submitted as its own job using the fields of a template
+ * GenericObject, and the results are merged in input order.  Every
+ * part's result must end with the "&lt;&lt; EOT &gt;&gt;" marker (so
+ * the batch command must include the -E option); the merged result
+ * ends with a single marker.
+ * <pre>
+ * GenericObject job = new GenericObject();
+ * job.setField("Email_Address", emailAddress);
+ * job.setField("Batch_Command", "MTI -opt1L_DCMS -E");
+ * new SplitBatchSubmission(job, 8).run(Paths.get("input.txt"), Paths.get("result.txt"));
+ * </pre>
+ * The number of parts defaults to property skrapi.batch.split.parts (default 4).
+ */
+public class SplitBatchSubmission
+{
+  /** default number of parts, property: skrapi.batch.split.parts */
+  public static final int defaultParts =
+    Integer.parseInt(System.getProperty("skrapi.batch.split.parts", "4"));
+
+  private static final byte[] EOT =
+    ChunkedSubmission.EOT_MARKER.getBytes(StandardCharsets.US_ASCII);
+
+  private final GenericObject job;
+  private final int parts;
+  private Executor executor = AsyncSubmission.defaultExecutor;
+
+  /**
+   * Creates a new <code>SplitBatchSubmission</code> instance.
+   *
+   * @param job template job supplying all fields except UpLoad_File
+   */
+  public SplitBatchSubmission(GenericObject job)
+  {
+    this(job, defaultParts);
+  }
+
+  /**
+   * Creates a new <code>SplitBatchSubmission</code> instance.
+   *
+   * @param job template job supplying all fields except UpLoad_File
+   * @param parts number of jobs to split input into
+   */
+  public SplitBatchSubmission(GenericObject job, int parts)
+  {
+    if (parts < 1)
+      throw new IllegalArgumentException("parts must be at least 1");
+    this.job = job;
+    this.parts = parts;
+  }
+
+  /**
+   * Set executor used to run the parts.
+   *
+   * @param executor executor that runs the submission of each part
+   * @return this submission.
+   */
+  public SplitBatchSubmission setExecutor(Executor executor)
+  {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * Split input, submit parts in parallel and merge their results.
+   *
+   * @param input file of MEDLINE citations
+   * @param output file receiving merged result, overwritten if it exists
+   * @return bytes read from the part results and written to output.
+   */
+  public TransferStats run(Path input, Path output)
+  {
+    long start = System.nanoTime();
+    Path directory = null;
+    try {
+      directory = Files.createTempDirectory("skrapi_split");
+      List<Path> inputs = MedlineSplitter.split(input, this.parts, directory);
+      List<Path> results = new ArrayList<Path>(inputs.size());
+      List<CompletableFuture<TransferStats>> futures =
+	new ArrayList<CompletableFuture<TransferStats>>(inputs.size());
+      for (Path part: inputs) {
+	Path result = directory.resolve(part.getFileName() + ".result");
+	results.add(result);
+	futures.add(this.submitPart(part, result));
+      }
+      long bytesRead = await(futures);
+      long bytesWritten = merge(results, output);
+      return new TransferStats(bytesRead, bytesWritten, System.nanoTime() - start);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      if (directory != null) {
+	deleteDirectory(directory);
+      }
+    }
+  }
+
+  /**
+   * Split input, submit parts in parallel and merge their results,
+   * keeping parts, results and a journal of the run in a work
+   * directory.  If the run is interrupted, calling this method again
+   * with the same input and work directory submits only the parts
+   * without a complete result.  A changed input, detected by its size
+   * and modification time or by the SHA-256 hashes of its parts,
+   * starts a new run.  The work directory is kept after the run.
+   *
+   * @param input file of MEDLINE citations
+   * @param output file receiving merged result, overwritten if it exists
+   * @param workDirectory directory of parts, results and journal, created if needed
+   * @return bytes read from the part results submitted by this call
+   *         and written to output.
+   */
+  public TransferStats run(Path input, Path output, Path workDirectory)
+  {
+    long start = System.nanoTime();
+    try {
+      Files.createDirectories(workDirectory);
+      try (BatchJournal journal = BatchJournal.open(workDirectory.resolve("journal.log"))) {
+	List<BatchJournal.Part> parts = this.prepare(journal, input, workDirectory);
+	List<Path> results = new ArrayList<Path>(parts.size());
+	List<CompletableFuture<TransferStats>> futures =
+	  new ArrayList<CompletableFuture<TransferStats>>(parts.size());
+	for (BatchJournal.Part part: parts) {
+	  Path result = workDirectory.resolve(part.file.getFileName() + ".result");
+	  results.add(result);
+	  if (! journal.isComplete(part)) {
+	    journal.setState(part, BatchJournal.State.SUBMITTED, null);
+	    futures.add(this.submitJournaledPart(journal, part, result));
+	  }
+	}
+	long bytesRead = await(futures);
+	long bytesWritten = merge(results, output);
+	return new TransferStats(bytesRead, bytesWritten, System.nanoTime() - start);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Parts of run recorded in journal, or of a new run if the journal
+   * is for another input or its part files have changed.
+   *
+   * @param journal journal of run
+   * @param input file of MEDLINE citations
+   * @param workDirectory directory receiving parts
+   * @return parts of run in input order.
+   * @throws IOException I/O exception
+   */
+  List<BatchJournal.Part> prepare(BatchJournal journal, Path input, Path workDirectory)
+    throws IOException
+  {
+    if (journal.matches(input, this.parts)) {
+      boolean intact = true;
+      for (BatchJournal.Part part: journal.getParts()) {
+	intact = intact && BatchJournal.isIntact(part);
+      }
+      if (intact) {
+	return journal.getParts();
+      }
+    }
+    List<Path> files = MedlineSplitter.split(input, this.parts, workDirectory);
+    journal.beginRun(input, this.parts);
+    long offset = 0;
+    for (int i = 0; i < files.size(); i++) {
+      offset += journal.addPart(i, offset, files.get(i)).length;
+    }
+    journal.sync();
+    return journal.getParts();
+  }
+
+  /**
+   * Submit a part of a journaled run, recording its outcome.  A result
+   * without the end of result marker is recorded as failed.
+   *
+   * @param journal journal of run
+   * @param part part of input
+   * @param result file receiving result of part
+   * @return future completed with transfer statistics of part.
+   */
+  CompletableFuture<TransferStats> submitJournaledPart(final BatchJournal journal,
+						       final BatchJournal.Part part,
+						       final Path result)
+  {
+    final CompletableFuture<TransferStats> submission = this.submitPart(part.file, result);
+    CompletableFuture<TransferStats> recorded = submission.thenApply(stats -> {
+	try (FileChannel in = FileChannel.open(result, StandardOpenOption.READ)) {
+	  if (findEot(in) < 0) {
+	    throw new TruncatedResultException("result of part " + part.index + " is missing the " +
+					       ChunkedSubmission.EOT_MARKER + " marker");
+	  }
+	  journal.setState(part, BatchJournal.State.DONE, result);
+	  return stats;
+	} catch (IOException e) {
+	  throw new UncheckedIOException(e);
+	}
+      });
+    recorded.whenComplete((stats, failure) -> {
+	if (failure != null) {
+	  // cancelling the recorded future aborts the submission
+	  submission.cancel(true);
+	  try {
+	    journal.setState(part, BatchJournal.State.FAILED, null);
+	  } catch (IOException e) {
+	    // journal closed after run was abandoned, the part is
+	    // submitted again since it was not recorded as done
+	  }
+	}
+      });
+    return recorded;
+  }
+
+  /**
+   * Wait for all parts, cancelling the others if one fails.
+   *
+   * @param futures submissions of parts
+   * @return bytes written by all parts.
+   * @throws InterruptedException if interrupted while waiting
+   */
+  static long await(List<CompletableFuture<TransferStats>> futures)
+    throws InterruptedException
+  {
+    long bytesRead = 0;
+    try {
+      for (CompletableFuture<TransferStats> future: futures) {
+	bytesRead += future.get().getBytesWritten();
+      }
+    } catch (ExecutionException e) {
+      for (CompletableFuture<TransferStats> future: futures) {
+	future.cancel(true);
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException)
+	cause = cause.getCause();
+      throw new RuntimeException(cause);
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Submit one part of the input, writing its result to a file.
+   *
+   * @param part input of part
+   * @param result file receiving result of part
+   * @return future completed with transfer statistics of part.
+   */
+  CompletableFuture<TransferStats> submitPart(final Path part, final Path result)
+  {
+    final Map<String,ContentBody> form = this.job.snapshotForm();
+    SpooledFileBody.release(form.put("UpLoad_File",
+				     new FileBody(part.toFile(), ContentType.TEXT_PLAIN)));
+    return GenericObject.releaseWhenComplete
+      (AsyncSubmission.start
+       (abort -> {
+	 try (FileChannel channel = FileChannel.open(result, StandardOpenOption.CREATE,
+						     StandardOpenOption.TRUNCATE_EXISTING,
+						     StandardOpenOption.WRITE)) {
+	   return this.job.transfer(this.job.submit(form, abort), channel);
+	 }
+       }, this.executor, 0, TimeUnit.MILLISECONDS),
+       form);
+  }
+
+  /**
+   * Concatenate results in order leaving out their end of result
+   * markers, then append a single marker.
+   *
+   * @param results result files in input order
+   * @param output file receiving merged result
+   * @return number of bytes written to output.
+   * @throws IOException if a result is missing its end of result marker.
+   */
+  static long merge(List<Path> results, Path output)
+    throws IOException
+  {
+    long written = 0;
+    try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+					    StandardOpenOption.TRUNCATE_EXISTING,
+					    StandardOpenOption.WRITE)) {
+      for (int i = 0; i < results.size(); i++) {
+	try (FileChannel in = FileChannel.open(results.get(i), StandardOpenOption.READ)) {
+	  long end = findEot(in);
+	  if (end < 0) {
+	    throw new IOException("result of part " + i + " is missing the " +
+				  ChunkedSubmission.EOT_MARKER + " marker, it may be truncated.");
+	  }
+	  long position = 0;
+	  while (position < end) {
+	    position += in.transferTo(position, end - position, out);
+	  }
+	  written += end;
+	}
+      }
+      ByteBuffer marker = ByteBuffer.allocate(EOT.length + 1);
+      marker.put(EOT).put((byte)'\n').flip();
+      while (marker.hasRemaining()) {
+	written += out.write(marker);
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Find the end of result marker at the end of a result, it may only
+   * be followed by whitespace.
+   *
+   * @param channel result file
+   * @return offset of the start of the marker line or -1 if there is none.
+   * @throws IOException I/O exception
+   */
+  static long findEot(FileChannel channel)
+    throws IOException
+  {
+    long size = channel.size();
+    int length = (int)Math.min(size, 4096);
+    ByteBuffer tail = ByteBuffer.allocate(length);
+    while (tail.hasRemaining()) {
+      if (channel.read(tail, size - length + tail.position()) < 0)
+	break;
+    }
+    byte[] data = tail.array();
+    int end = length;
+    while ((end > 0) && Character.isWhitespace(data[end - 1])) {
+      end--;
+    }
+    int start = end - EOT.length;
+    if (start < 0)
+      return -1;
+    for (int i = 0; i < EOT.length; i++) {
+      if (data[start + i] != EOT[i])
+	return -1;
+    }
+    return size - length + start;
+  }
+
+  /** Delete directory and the files in it. */
+  static void deleteDirectory(Path directory)
+  {
+    try {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+	for (Path file: files) {
+	  Files.deleteIfExists(file);
+	}
+      }
+      Files.deleteIfExists(directory);
+    } catch (IOException e) {
+      System.err.println("unable to remove temporary directory " + directory);
+    }
+  }
+}
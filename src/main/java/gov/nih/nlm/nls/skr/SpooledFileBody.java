@@ -0,0 +1,133 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+
+/**
+ * File body holding a buffer spooled to a temporary file.  The file
+ * is deleted once the body has been replaced in its job, or has been
+ * submitted, and no submission is still using it.
+ */
+final class SpooledFileBody extends FileBody
+{
+  private final String filename;
+  /** submissions using this body */
+  private int users = 0;
+  /** delete when no longer used */
+  private boolean disposable = false;
+  private boolean deleted = false;
+
+  private SpooledFileBody(File file, String filename)
+  {
+    super(file, ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8));
+    this.filename = filename;
+  }
+
+  /**
+   * Write buffer as UTF-8 to a temporary file.
+   *
+   * @param filename name of file sent with the buffer
+   * @param buffer content of file
+   * @return body reading the temporary file.
+   * @throws IOException if the file cannot be written
+   */
+  static SpooledFileBody spool(String filename, String buffer)
+    throws IOException
+  {
+    File file = File.createTempFile("skrapi_", null);
+    file.deleteOnExit();
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+					     StandardCharsets.UTF_8)) {
+      out.write(buffer);
+    } catch (IOException | RuntimeException e) {
+      file.delete();
+      throw e;
+    }
+    return new SpooledFileBody(file, filename);
+  }
+
+  public String getFilename() {
+    return this.filename;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    synchronized (this) {
+      if (this.deleted) {
+	throw new IOException("spooled buffer " + this.filename + " was already submitted");
+      }
+    }
+    super.writeTo(out);
+  }
+
+  /**
+   * Mark body as used by a submission.
+   *
+   * @throws IllegalStateException if the file has been deleted.
+   */
+  synchronized void retain() {
+    if (this.deleted) {
+      throw new IllegalStateException("spooled buffer " + this.filename +
+				      " was already submitted, set the field again to resubmit.");
+    }
+    this.users++;
+    this.disposable = true;
+  }
+
+  /** Mark body as no longer used by a submission. */
+  synchronized void release() {
+    this.users--;
+    this.deleteIfUnused();
+  }
+
+  /** Mark body as replaced in its job. */
+  synchronized void discard() {
+    this.disposable = true;
+    this.deleteIfUnused();
+  }
+
+  private void deleteIfUnused() {
+    if (this.disposable && (this.users <= 0) && ! this.deleted) {
+      this.deleted = true;
+      this.getFile().delete();
+    }
+  }
+
+  /**
+   * Mark body as used by a submission if it is a spooled buffer.
+   *
+   * @param body form element, may be null
+   */
+  static void retain(ContentBody body) {
+    if (body instanceof SpooledFileBody)
+      ((SpooledFileBody)body).retain();
+  }
+
+  /**
+   * Mark body as no longer used by a submission if it is a spooled buffer.
+   *
+   * @param body form element, may be null
+   */
+  static void release(ContentBody body) {
+    if (body instanceof SpooledFileBody)
+      ((SpooledFileBody)body).release();
+  }
+
+  /**
+   * Mark body as replaced in its job if it is a spooled buffer.
+   *
+   * @param body form element, may be null
+   */
+  static void discard(ContentBody body) {
+    if (body instanceof SpooledFileBody)
+      ((SpooledFileBody)body).discard();
+  }
+}
@@ -0,0 +1,119 @@
+package gov.nih.nlm.nls.skr;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Executors for running submissions, one thread per request.
+ *
+ * On Java 21 or later each request can run on its own virtual thread,
+ * which allows tens of thousands of interactive requests to be in
+ * flight at once.  The mode is selected by property skrapi.executor:
+ * <dl>
+ *  <dt>platform
+ *  <dd>cached pool of daemon platform threads (default)
+ *  <dt>virtual
+ *  <dd>a new virtual thread per request, falls back to platform
+ *      threads on Java versions before 21
+ * </dl>
+ * Virtual threads are created reflectively so the library still
+ * compiles and runs on Java 8.
+ */
+public final class SubmissionExecutors
+{
+  private static final Logger LOG = Logger.getLogger(SubmissionExecutors.class.getName());
+
+  /** execution mode, property: skrapi.executor */
+  public static final String mode = System.getProperty("skrapi.executor", "platform");
+
+  /** Executors.newVirtualThreadPerTaskExecutor if the JVM provides it */
+  private static final Method virtualThreadFactoryMethod = findVirtualThreadFactoryMethod();
+
+  private SubmissionExecutors()
+  {
+    // static-only access
+  }
+
+  private static Method findVirtualThreadFactoryMethod()
+  {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException exception) {
+      return null;
+    }
+  }
+
+  /** @return true if the JVM supports virtual threads. */
+  public static boolean isVirtualThreadSupported()
+  {
+    return virtualThreadFactoryMethod != null;
+  }
+
+  /**
+   * Create executor that starts a virtual thread for each request.
+   *
+   * @return virtual thread per task executor.
+   * @throws UnsupportedOperationException if JVM does not support virtual threads.
+   */
+  public static ExecutorService newVirtualThreadExecutor()
+  {
+    if (virtualThreadFactoryMethod == null) {
+      throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+    }
+    try {
+      return (ExecutorService)virtualThreadFactoryMethod.invoke(null);
+    } catch (ReflectiveOperationException exception) {
+      throw new UnsupportedOperationException(exception);
+    }
+  }
+
+  /**
+   * Create executor backed by a cached pool of daemon platform threads.
+   *
+   * @param prefix prefix of thread names
+   * @return platform thread executor.
+   */
+  public static ExecutorService newPlatformThreadExecutor(String prefix)
+  {
+    return Executors.newCachedThreadPool(daemonThreads(prefix));
+  }
+
+  /**
+   * Create executor for the execution mode selected by skrapi.executor.
+   *
+   * @return virtual thread executor if selected and supported,
+   *         otherwise platform thread executor.
+   */
+  public static ExecutorService newPerRequestExecutor()
+  {
+    if (mode.equals("virtual")) {
+      if (isVirtualThreadSupported()) {
+	return newVirtualThreadExecutor();
+      }
+      LOG.warning("skrapi.executor=virtual requires Java 21 or later, using platform threads.");
+    }
+    return newPlatformThreadExecutor("skrapi-submission-");
+  }
+
+  /**
+   * Thread factory creating named daemon threads.
+   *
+   * @param prefix prefix of thread names
+   * @return thread factory
+   */
+  static ThreadFactory daemonThreads(final String prefix)
+  {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+	Thread thread = new Thread(r, prefix + count.incrementAndGet());
+	thread.setDaemon(true);
+	return thread;
+      }
+    };
+  }
+}
@@ -0,0 +1,185 @@
+package gov.nih.nlm.nls.skr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Split text into chunks no longer than a length limit, cutting at
+ * paragraph boundaries where possible, then at sentence boundaries,
+ * then at whitespace.  A chunk is only cut mid-word if it contains no
+ * whitespace at all.
+ */
+public final class TextChunker
+{
+  /** abbreviations that are followed by a capital or number within a sentence */
+  private static final Set<String> ABBREVIATIONS =
+    new HashSet<String>(Arrays.asList("al", "vs", "cf", "ca", "approx", "Fig", "Figs", "fig",
+				      "figs", "Eqs", "Refs", "ref", "refs", "Vol", "Vols",
+				      "Suppl", "Tab"));
+
+  /** A chunk of text and its offset in the original text. */
+  public static final class Chunk
+  {
+    private final int offset;
+    private final String text;
+
+    Chunk(int offset, String text) {
+      this.offset = offset;
+      this.text = text;
+    }
+
+    /** @return offset of chunk in original text. */
+    public int getOffset() {
+      return this.offset;
+    }
+
+    /** @return text of chunk. */
+    public String getText() {
+      return this.text;
+    }
+  }
+
+  private TextChunker()
+  {
+    // static-only access
+  }
+
+  /**
+   * Split text into chunks of at most limit characters.  Concatenating
+   * the text of the chunks gives the original text.
+   *
+   * @param text text to split
+   * @param limit maximum length of chunk
+   * @return chunks in order of their offset.
+   */
+  public static List<Chunk> split(String text, int limit)
+  {
+    if (limit <= 0)
+      throw new IllegalArgumentException("limit must be positive");
+    List<Chunk> chunks = new ArrayList<Chunk>();
+    int start = 0;
+    while (text.length() - start > limit) {
+      int end = cutPoint(text, start, start + limit);
+      chunks.add(new Chunk(start, text.substring(start, end)));
+      start = end;
+    }
+    if (start < text.length() || chunks.isEmpty()) {
+      chunks.add(new Chunk(start, text.substring(start)));
+    }
+    return chunks;
+  }
+
+  /**
+   * Split text into sentences, ending at paragraph breaks and at
+   * sentence end punctuation followed by whitespace and an upper case
+   * letter or digit, except after single letters, capitalized two
+   * letter words such as "Dr." and abbreviations such as "al.",
+   * "vs." and "Fig.".
+   * Whitespace between sentences is not part of any sentence.
+   *
+   * @param text text to split
+   * @return sentences in order of their offset.
+   */
+  public static List<Chunk> sentences(String text)
+  {
+    List<Chunk> sentences = new ArrayList<Chunk>();
+    int n = text.length();
+    int start = 0;
+    while (start < n) {
+      while (start < n && Character.isWhitespace(text.charAt(start))) start++;
+      if (start == n)
+	break;
+      int end = start;
+      while (end < n) {
+	char c = text.charAt(end);
+	if (c == '\n' && isParagraphBreak(text, start, end)) {
+	  break;
+	}
+	if (isSentenceEnd(c) && isSentenceBreak(text, start, end)) {
+	  end++;
+	  break;
+	}
+	end++;
+      }
+      int last = end;
+      while (last > start && Character.isWhitespace(text.charAt(last - 1))) last--;
+      sentences.add(new Chunk(start, text.substring(start, last)));
+      start = end;
+    }
+    return sentences;
+  }
+
+  /** @return true if sentence end punctuation at i ends a sentence. */
+  static boolean isSentenceBreak(String text, int start, int i)
+  {
+    int next = i + 1;
+    if (next >= text.length())
+      return true;
+    if (! Character.isWhitespace(text.charAt(next)))
+      return false;
+    while (next < text.length() && Character.isWhitespace(text.charAt(next))) next++;
+    if ((next < text.length()) && ! Character.isUpperCase(text.charAt(next)) &&
+	! Character.isDigit(text.charAt(next)))
+      return false;
+    int word = i;
+    while (word > start && Character.isLetter(text.charAt(word - 1))) word--;
+    String abbreviation = text.substring(word, i);
+    if (abbreviation.length() == 1)
+      return false;
+    if (ABBREVIATIONS.contains(abbreviation))
+      return false;
+    return (abbreviation.length() != 2) || ! Character.isUpperCase(abbreviation.charAt(0));
+  }
+
+  /**
+   * Find end of chunk starting at start that ends no later than limit.
+   *
+   * @return index following the last paragraph break, sentence end
+   *         or whitespace in range, or limit if there is none.
+   */
+  static int cutPoint(String text, int start, int limit)
+  {
+    int sentence = -1;
+    int space = -1;
+    for (int i = limit - 1; i > start; i--) {
+      char c = text.charAt(i);
+      if (c == '\n' && isParagraphBreak(text, start, i)) {
+	return i + 1;
+      }
+      if (Character.isWhitespace(c)) {
+	if ((sentence < 0) && isSentenceEnd(text.charAt(i - 1))) {
+	  sentence = i + 1;
+	}
+	if (space < 0) {
+	  space = i + 1;
+	}
+      }
+    }
+    if (sentence > 0)
+      return sentence;
+    if (space > 0)
+      return space;
+    return limit;
+  }
+
+  /** @return true if newline at i is preceded by another newline with only whitespace between. */
+  static boolean isParagraphBreak(String text, int start, int i)
+  {
+    for (int j = i - 1; j >= start; j--) {
+      char c = text.charAt(j);
+      if (c == '\n')
+	return true;
+      if (! Character.isWhitespace(c))
+	return false;
+    }
+    return false;
+  }
+
+  static boolean isSentenceEnd(char c)
+  {
+    return (c == '.') || (c == '?') || (c == '!');
+  }
+}
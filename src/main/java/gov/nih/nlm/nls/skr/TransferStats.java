@@ -0,0 +1,54 @@
+package gov.nih.nlm.nls.skr;
+
+/**
+ * Byte counts and elapsed time of a result transfer.
+ */
+public final class TransferStats
+{
+  private final long bytesRead;
+  private final long bytesWritten;
+  private final long elapsedNanos;
+
+  /**
+   * Creates a new <code>TransferStats</code> instance.
+   *
+   * @param bytesRead number of bytes read from server response
+   * @param bytesWritten number of bytes written to sink after
+   *                     keep-alive lines were dropped
+   * @param elapsedNanos duration of transfer in nanoseconds
+   */
+  public TransferStats(long bytesRead, long bytesWritten, long elapsedNanos)
+  {
+    this.bytesRead = bytesRead;
+    this.bytesWritten = bytesWritten;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /** @return number of bytes read from server response. */
+  public long getBytesRead() {
+    return this.bytesRead;
+  }
+
+  /** @return number of bytes written to sink. */
+  public long getBytesWritten() {
+    return this.bytesWritten;
+  }
+
+  /** @return duration of transfer in milliseconds. */
+  public long getElapsedMillis() {
+    return this.elapsedNanos / 1000000L;
+  }
+
+  /** @return bytes written per second, 0 if no time elapsed. */
+  public double getThroughput() {
+    if (this.elapsedNanos <= 0)
+      return 0.0;
+    return this.bytesWritten * 1.0e9 / this.elapsedNanos;
+  }
+
+  public String toString() {
+    return "TransferStats[read=" + this.bytesRead + ", written=" + this.bytesWritten +
+      ", elapsed=" + this.getElapsedMillis() + "ms, throughput=" +
+      Math.round(this.getThroughput()) + " bytes/s]";
+  }
+}
@@ -0,0 +1,179 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import gov.nih.nlm.nls.util.Governor;
+
+/**
+ * Process-wide HTTP transport shared by all GenericObject instances.
+ *
+ * Connections to the batch and interactive services are kept alive
+ * in a pool and reused between submissions instead of paying for a
+ * new TCP connection and TLS handshake on every job.
+ * <p>
+ * Properties:
+ * <dl>
+ *  <dt>skrapi.http.maxtotal
+ *  <dd>maximum number of pooled connections (default 200)
+ *  <dt>skrapi.http.maxperroute
+ *  <dd>maximum number of pooled connections per service host (default 100)
+ *  <dt>skrapi.http.connect.timeout
+ *  <dd>connect timeout in milliseconds (default 30000)
+ *  <dt>skrapi.http.socket.timeout
+ *  <dd>socket (read) timeout in milliseconds, 0 waits indefinitely
+ *      which batch jobs need (default 0)
+ *  <dt>skrapi.http.idle.timeout
+ *  <dd>close connections idle longer than this many seconds (default 60)
+ *  <dt>skrapi.http.compression
+ *  <dd>request gzip or deflate compressed responses (default true)
+ * </dl>
+ */
+public final class Transport
+{
+  private static final Logger LOG = Logger.getLogger(Transport.class.getName());
+
+  /** maximum number of pooled connections, property: skrapi.http.maxtotal */
+  public static final int maxTotal =
+    Integer.parseInt(System.getProperty("skrapi.http.maxtotal", "200"));
+
+  /** maximum number of pooled connections per route, property: skrapi.http.maxperroute */
+  public static final int maxPerRoute =
+    Integer.parseInt(System.getProperty("skrapi.http.maxperroute", "100"));
+
+  /** connect timeout in milliseconds, property: skrapi.http.connect.timeout */
+  public static final int connectTimeout =
+    Integer.parseInt(System.getProperty("skrapi.http.connect.timeout", "30000"));
+
+  /** socket timeout in milliseconds, property: skrapi.http.socket.timeout */
+  public static final int socketTimeout =
+    Integer.parseInt(System.getProperty("skrapi.http.socket.timeout", "0"));
+
+  /** idle connection timeout in seconds, property: skrapi.http.idle.timeout */
+  public static final long idleTimeout =
+    Long.parseLong(System.getProperty("skrapi.http.idle.timeout", "60"));
+
+  /** request compressed responses, property: skrapi.http.compression */
+  public static final boolean compression =
+    Boolean.parseBoolean(System.getProperty("skrapi.http.compression", "true"));
+
+  private static volatile PoolingHttpClientConnectionManager connectionManager = null;
+
+  private static volatile CloseableHttpClient sharedClient = null;
+
+  private static final Object clientLock = new Object();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread("skrapi-transport-shutdown") {
+	public void run() {
+	  Transport.shutdown();
+	}
+      });
+  }
+
+  private Transport()
+  {
+    // static-only access
+  }
+
+  /**
+   * Get the shared client, creating it on first use.
+   *
+   * @return shared http client.
+   */
+  public static CloseableHttpClient getClient()
+  {
+    CloseableHttpClient client = sharedClient;
+    if (client == null) {
+      synchronized (clientLock) {
+	if (sharedClient == null) {
+	  PoolingHttpClientConnectionManager manager =
+	    new PoolingHttpClientConnectionManager();
+	  manager.setMaxTotal(maxTotal);
+	  manager.setDefaultMaxPerRoute(maxPerRoute);
+	  RequestConfig requestConfig = RequestConfig.custom()
+	    .setConnectTimeout(connectTimeout)
+	    .setSocketTimeout(socketTimeout)
+	    .build();
+	  connectionManager = manager;
+	  HttpClientBuilder builder = HttpClientBuilder.create()
+	    .setConnectionManager(manager)
+	    .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+	    .setDefaultRequestConfig(requestConfig)
+	    .evictExpiredConnections()
+	    .evictIdleConnections(idleTimeout, TimeUnit.SECONDS);
+	  if (compression) {
+	    // the builder adds Accept-Encoding and decompresses encoded
+	    // responses as they are read; count bytes on either side.
+	    builder.addInterceptorFirst(CompressionStats.WIRE_COUNTER)
+	      .addInterceptorLast(CompressionStats.DECODED_COUNTER);
+	  } else {
+	    builder.disableContentCompression();
+	  }
+	  sharedClient = builder.build();
+	}
+	client = sharedClient;
+      }
+    }
+    return client;
+  }
+
+  /**
+   * Get statistics of the connection pool: leased, pending and
+   * available connections.
+   *
+   * @return pool statistics, all zero if the transport has not been used.
+   */
+  public static PoolStats getStats()
+  {
+    PoolingHttpClientConnectionManager manager = connectionManager;
+    if (manager == null) {
+      return new PoolStats(0, 0, 0, maxTotal);
+    }
+    return manager.getTotalStats();
+  }
+
+  /**
+   * Wrap response so that closing it also releases the governor
+   * permit held for the duration of the request.
+   *
+   * @param response http response
+   * @param permit permit to release with response
+   * @return response releasing permit when it is closed.
+   */
+  static CloseableHttpResponse closing(CloseableHttpResponse response, Governor.Permit permit)
+  {
+    return new PermitResponse(response, permit);
+  }
+
+  /**
+   * Close the shared client and its pooled connections.  The client
+   * is closed automatically when the JVM exits; a later submission
+   * creates a new client.
+   */
+  public static void shutdown()
+  {
+    CloseableHttpClient client;
+    synchronized (clientLock) {
+      client = sharedClient;
+      sharedClient = null;
+      connectionManager = null;
+    }
+    if (client != null) {
+      try {
+	client.close();
+      } catch (IOException e) {
+	LOG.warning(e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package gov.nih.nlm.nls.skr;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a result that should end with the "&lt;&lt; EOT &gt;&gt;"
+ * marker does not, meaning the server's response was cut short.
+ */
+public class TruncatedResultException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Creates a new <code>TruncatedResultException</code> instance.
+   *
+   * @param message detail message
+   */
+  public TruncatedResultException(String message)
+  {
+    super(message);
+  }
+}
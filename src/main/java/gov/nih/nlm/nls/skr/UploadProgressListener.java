@@ -0,0 +1,22 @@
+package gov.nih.nlm.nls.skr;
+
+/**
+ * Receives progress of a file upload, see
+ * GenericObject.setUploadProgressListener.
+ */
+public interface UploadProgressListener
+{
+  /**
+   * Report progress of upload, called periodically while the file is
+   * sent and once when it has been sent completely.
+   *
+   * @param filename name of file being sent
+   * @param bytesSent bytes of file sent so far
+   * @param totalBytes size of file
+   * @param bytesPerSecond average rate since upload started
+   * @param etaMillis estimated milliseconds until the file is sent,
+   *                  -1 if not known
+   */
+  void progress(String filename, long bytesSent, long totalBytes,
+		double bytesPerSecond, long etaMillis);
+}
@@ -0,0 +1,124 @@
+package gov.nih.nlm.nls.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-endpoint circuit breaker.
+ *
+ * After a number of consecutive failures the breaker opens and
+ * requests to the endpoint fail immediately with a
+ * CircuitOpenException.  Once the cool-down period has passed a single
+ * trial request is let through; if it succeeds the breaker closes,
+ * otherwise it stays open for another cool-down period.
+ * <dl>
+ *  <dt>skrapi.breaker.threshold
+ *  <dd>consecutive failures that open the breaker, 0 disables it (default 5)
+ *  <dt>skrapi.breaker.cooldown
+ *  <dd>milliseconds breaker stays open before a trial request (default 60000)
+ * </dl>
+ */
+public final class CircuitBreaker
+{
+  /** consecutive failures that open breaker, property: skrapi.breaker.threshold */
+  public static final int defaultThreshold =
+    Integer.parseInt(System.getProperty("skrapi.breaker.threshold", "5"));
+
+  /** milliseconds breaker stays open, property: skrapi.breaker.cooldown */
+  public static final long defaultCooldown =
+    Long.parseLong(System.getProperty("skrapi.breaker.cooldown", "60000"));
+
+  /** breakers by endpoint */
+  private static final ConcurrentMap<String,CircuitBreaker> breakers =
+    new ConcurrentHashMap<String,CircuitBreaker>();
+
+  private final String endpoint;
+  private final int threshold;
+  private final long cooldown;
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicBoolean trialInProgress = new AtomicBoolean();
+  private volatile long openedAt = 0;
+
+  /**
+   * Creates a new <code>CircuitBreaker</code> instance.
+   *
+   * @param endpoint name of endpoint
+   * @param threshold consecutive failures that open breaker, 0 disables breaker
+   * @param cooldown milliseconds breaker stays open before a trial request
+   */
+  public CircuitBreaker(String endpoint, int threshold, long cooldown)
+  {
+    this.endpoint = endpoint;
+    this.threshold = threshold;
+    this.cooldown = cooldown;
+  }
+
+  /**
+   * Get shared breaker for endpoint configured by skrapi.breaker.* properties.
+   *
+   * @param endpoint url of endpoint
+   * @return shared breaker
+   */
+  public static CircuitBreaker forEndpoint(String endpoint)
+  {
+    return breakers.computeIfAbsent
+      (endpoint, e -> new CircuitBreaker(e, defaultThreshold, defaultCooldown));
+  }
+
+  /**
+   * Check that a request may be sent to the endpoint.
+   *
+   * @throws CircuitOpenException if breaker is open.
+   */
+  public void before()
+    throws CircuitOpenException
+  {
+    if (! this.isOpen())
+      return;
+    if ((System.currentTimeMillis() - this.openedAt >= this.cooldown) &&
+	this.trialInProgress.compareAndSet(false, true)) {
+      return;
+    }
+    throw new CircuitOpenException("circuit breaker open for " + this.endpoint +
+				   " after " + this.failures.get() + " consecutive failures");
+  }
+
+  /** Record a request that reached the endpoint. */
+  public void onSuccess()
+  {
+    this.failures.set(0);
+    this.trialInProgress.set(false);
+  }
+
+  /**
+   * Record a request that was not sent after all, ending a trial
+   * request without an outcome.
+   */
+  public void onNotSent()
+  {
+    this.trialInProgress.set(false);
+  }
+
+  /** Record a request that failed because the endpoint is unavailable. */
+  public void onFailure()
+  {
+    int count = this.failures.incrementAndGet();
+    if ((this.threshold > 0) && (count >= this.threshold)) {
+      this.openedAt = System.currentTimeMillis();
+    }
+    this.trialInProgress.set(false);
+  }
+
+  /** @return true if breaker is open. */
+  public boolean isOpen()
+  {
+    return (this.threshold > 0) && (this.failures.get() >= this.threshold);
+  }
+
+  public String toString() {
+    return "CircuitBreaker[" + this.endpoint + ", failures=" + this.failures +
+      (this.isOpen() ? ", open]" : ", closed]");
+  }
+}
@@ -0,0 +1,20 @@
+package gov.nih.nlm.nls.util;
+
+/**
+ * Thrown when a request is refused without being sent because the
+ * circuit breaker of its endpoint is open.
+ */
+public class CircuitOpenException extends NotSentException
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Creates a new <code>CircuitOpenException</code> instance.
+   *
+   * @param message detail message
+   */
+  public CircuitOpenException(String message)
+  {
+    super(message);
+  }
+}
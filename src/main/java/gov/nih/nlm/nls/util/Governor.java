@@ -0,0 +1,184 @@
+package gov.nih.nlm.nls.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side rate limiter and concurrency governor.
+ *
+ * Each named governor enforces a token bucket rate of requests per
+ * second and a maximum number of requests in flight.  Callers wait
+ * in arrival order for both.  Limits are set by system properties:
+ * <dl>
+ *  <dt>skrapi.governor.&lt;name&gt;.rate
+ *  <dd>requests per second, 0 for no limit (default 0)
+ *  <dt>skrapi.governor.&lt;name&gt;.burst
+ *  <dd>requests allowed in a burst above the rate (default 1)
+ *  <dt>skrapi.governor.&lt;name&gt;.maxinflight
+ *  <dd>maximum number of requests in flight, 0 for no limit (default 0)
+ * </dl>
+ * The names used by the library are "cas" for the authentication
+ * server, "batch" for Generic Batch jobs, and "metamap", "semrep" and
+ * "mti" for the interactive services.
+ * <pre>
+ * Governor.Permit permit = Governor.forName("mti").acquire();
+ * try {
+ *   ... perform request ...
+ * } finally {
+ *   permit.close();
+ * }
+ * </pre>
+ */
+public final class Governor
+{
+  /** governors by name */
+  private static final ConcurrentMap<String,Governor> governors =
+    new ConcurrentHashMap<String,Governor>();
+
+  /** permit returned when governor has no limits */
+  private static final Permit UNLIMITED = new Permit(null);
+
+  private final String name;
+  private final double rate;
+  private final double burst;
+  private final Semaphore inFlight;
+
+  /** fair lock, callers waiting for a token are served in order */
+  private final ReentrantLock tokenLock = new ReentrantLock(true);
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+
+  /**
+   * Creates a new <code>Governor</code> instance.
+   *
+   * @param name name of governor
+   * @param rate requests per second, 0 for no limit
+   * @param burst requests allowed in a burst above the rate
+   * @param maxInFlight maximum requests in flight, 0 for no limit
+   */
+  public Governor(String name, double rate, double burst, int maxInFlight)
+  {
+    this.name = name;
+    this.rate = rate;
+    this.burst = Math.max(1.0, burst);
+    this.tokens = this.burst;
+    this.inFlight = (maxInFlight > 0) ? new Semaphore(maxInFlight, true) : null;
+  }
+
+  /**
+   * Get governor configured by the skrapi.governor.&lt;name&gt;.* properties.
+   *
+   * @param name name of governor
+   * @return shared governor
+   */
+  public static Governor forName(String name)
+  {
+    return governors.computeIfAbsent
+      (name, n -> new Governor
+       (n,
+	Double.parseDouble(System.getProperty("skrapi.governor." + n + ".rate", "0")),
+	Double.parseDouble(System.getProperty("skrapi.governor." + n + ".burst", "1")),
+	Integer.parseInt(System.getProperty("skrapi.governor." + n + ".maxinflight", "0"))));
+  }
+
+  /**
+   * Replace the shared governor of this name, for example to change
+   * its limits at runtime.
+   *
+   * @param governor governor to install
+   */
+  public static void register(Governor governor)
+  {
+    governors.put(governor.name, governor);
+  }
+
+  /**
+   * Wait until a request may start.  The permit must be closed when
+   * the request completes.
+   *
+   * @return permit for one request in flight.
+   * @throws InterruptedIOException if interrupted while waiting.
+   */
+  public Permit acquire()
+    throws InterruptedIOException
+  {
+    try {
+      if (this.inFlight != null) {
+	this.inFlight.acquire();
+      }
+      try {
+	this.takeToken();
+      } catch (InterruptedException e) {
+	if (this.inFlight != null) {
+	  this.inFlight.release();
+	}
+	throw e;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for " + this.name + " governor");
+    }
+    return (this.inFlight == null) ? UNLIMITED : new Permit(this.inFlight);
+  }
+
+  /** Wait for a token of the bucket. */
+  private void takeToken()
+    throws InterruptedException
+  {
+    if (this.rate <= 0)
+      return;
+    this.tokenLock.lockInterruptibly();
+    try {
+      while (true) {
+	long now = System.nanoTime();
+	this.tokens = Math.min(this.burst,
+			       this.tokens + (now - this.lastRefill) * this.rate / 1.0e9);
+	this.lastRefill = now;
+	if (this.tokens >= 1.0) {
+	  this.tokens -= 1.0;
+	  return;
+	}
+	long waitNanos = (long)Math.ceil((1.0 - this.tokens) * 1.0e9 / this.rate);
+	TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+    } finally {
+      this.tokenLock.unlock();
+    }
+  }
+
+  /** @return name of governor. */
+  public String getName() {
+    return this.name;
+  }
+
+  /** @return number of requests currently waiting for a permit. */
+  public int getQueueLength() {
+    int waiting = this.tokenLock.getQueueLength();
+    if (this.inFlight != null) {
+      waiting += this.inFlight.getQueueLength();
+    }
+    return waiting;
+  }
+
+  /** A request in flight; closing it more than once has no effect. */
+  public static final class Permit implements AutoCloseable
+  {
+    private final Semaphore semaphore;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    Permit(Semaphore semaphore) {
+      this.semaphore = semaphore;
+    }
+
+    public void close() {
+      if ((this.semaphore != null) && this.closed.compareAndSet(false, true)) {
+	this.semaphore.release();
+      }
+    }
+  }
+}
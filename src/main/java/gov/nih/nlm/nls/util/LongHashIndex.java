@@ -0,0 +1,318 @@
+package gov.nih.nlm.nls.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped open-addressing hash table from long keys to
+ * non-negative long values, kept in a file.  Slots are probed
+ * linearly and the table doubles when it is more than half full.
+ * Keys are expected to be hashes already; key 0 marks an empty slot
+ * and is stored as another constant, so callers must tolerate the
+ * (2^-64) chance of the two being confused.  The table holds at most
+ * 2^26 slots since a mapping is limited to 2 GiB.
+ *
+ * A file that is mapped is never truncated, which Windows refuses:
+ * the table grows by mapping a longer region of the file and is
+ * cleared in place.
+ *
+ * The header holds a watermark, a long chosen by the caller and saved
+ * with the table, for example the length of a data file indexed by
+ * the table; it is set to -1 while the table is being resized.
+ *
+ * Not thread-safe, callers synchronize access.
+ */
+public final class LongHashIndex
+  implements Closeable
+{
+  private static final long MAGIC = 0x534b524944583031L; // "SKRIDX01"
+  private static final int HEADER = 32;
+  private static final int SLOT = 16;
+  private static final int MAX_CAPACITY = 1 << 26;
+  /** stored in place of key 0, which marks an empty slot */
+  private static final long ZERO_KEY = 0x9e3779b97f4a7c15L;
+
+  private final FileChannel channel;
+  private MappedByteBuffer map;
+  private int capacity;
+  private int size;
+
+  private LongHashIndex(FileChannel channel)
+  {
+    this.channel = channel;
+  }
+
+  /**
+   * Open index file, creating it if it does not exist or is not an
+   * index.
+   *
+   * @param file index file
+   * @param initialCapacity expected number of keys of a new index
+   * @return open index.
+   * @throws IOException if file cannot be mapped
+   */
+  public static LongHashIndex open(Path file, int initialCapacity)
+    throws IOException
+  {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+					   StandardOpenOption.READ, StandardOpenOption.WRITE);
+    LongHashIndex index = new LongHashIndex(channel);
+    try {
+      if (! index.load()) {
+	index.create(slotsFor(initialCapacity));
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return index;
+  }
+
+  /** Map an existing index, returning false if file is not a valid index. */
+  private boolean load()
+    throws IOException
+  {
+    long length = this.channel.size();
+    if (length < HEADER)
+      return false;
+    // check the header before mapping, so that create may truncate
+    // a file that is not an index
+    ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining()) {
+      if (this.channel.read(header, header.position()) < 0)
+	return false;
+    }
+    int slots = header.getInt(8);
+    if ((header.getLong(0) != MAGIC) || (Integer.bitCount(slots) != 1) ||
+	(slots > MAX_CAPACITY) || (length != HEADER + (long)slots * SLOT))
+      return false;
+    this.map(length);
+    this.capacity = slots;
+    this.size = this.map.getInt(12);
+    return true;
+  }
+
+  /**
+   * Replace content of file with an empty index.  A file that is not
+   * mapped yet is truncated; a mapped file is extended by mapping the
+   * new length, slots must not be fewer than the current number, and
+   * cleared.
+   */
+  private void create(int slots)
+    throws IOException
+  {
+    long length = HEADER + (long)slots * SLOT;
+    if (this.map == null) {
+      this.channel.truncate(0);
+      this.map(length);
+    } else {
+      if (length != this.map.capacity()) {
+	this.map(length);
+      }
+      for (int position = HEADER; position < length; position += 8) {
+	this.map.putLong(position, 0);
+      }
+    }
+    this.map.putLong(0, MAGIC);
+    this.map.putInt(8, slots);
+    this.map.putInt(12, 0);
+    this.map.putLong(16, 0);
+    this.capacity = slots;
+    this.size = 0;
+  }
+
+  private void map(long length)
+    throws IOException
+  {
+    this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    this.map.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int slotsFor(int keys)
+    throws IOException
+  {
+    long wanted = Math.max(16L, 2L * keys);
+    if (wanted > MAX_CAPACITY)
+      throw new IOException("index cannot hold " + keys + " keys");
+    return Integer.highestOneBit((int)wanted - 1) << 1;
+  }
+
+  private static long mix(long key)
+  {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  /** Find slot of key, or the empty slot where it would go. */
+  private int slotOf(long key)
+  {
+    int mask = this.capacity - 1;
+    int slot = (int)mix(key) & mask;
+    while (true) {
+      long stored = this.map.getLong(HEADER + slot * SLOT);
+      if ((stored == 0) || (stored == key))
+	return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Get value of key.
+   *
+   * @param key key
+   * @return value, or -1 if key is not present.
+   */
+  public long get(long key)
+  {
+    if (key == 0) key = ZERO_KEY;
+    int slot = this.slotOf(key);
+    if (this.map.getLong(HEADER + slot * SLOT) == 0)
+      return -1;
+    return this.map.getLong(HEADER + slot * SLOT + 8);
+  }
+
+  /**
+   * Determine if key is present.
+   *
+   * @param key key
+   * @return true if key is present.
+   */
+  public boolean contains(long key)
+  {
+    return this.get(key) >= 0;
+  }
+
+  /**
+   * Set value of key.
+   *
+   * @param key key
+   * @param value non-negative value
+   * @throws IOException if index cannot grow
+   */
+  public void put(long key, long value)
+    throws IOException
+  {
+    this.insert(key, value, true);
+  }
+
+  /**
+   * Add key if it is not present.
+   *
+   * @param key key
+   * @param value non-negative value
+   * @return true if key was added, false if it was present.
+   * @throws IOException if index cannot grow
+   */
+  public boolean putIfAbsent(long key, long value)
+    throws IOException
+  {
+    return this.insert(key, value, false);
+  }
+
+  private boolean insert(long key, long value, boolean replace)
+    throws IOException
+  {
+    if (value < 0)
+      throw new IllegalArgumentException("value must not be negative: " + value);
+    if (key == 0) key = ZERO_KEY;
+    int slot = this.slotOf(key);
+    int position = HEADER + slot * SLOT;
+    if (this.map.getLong(position) != 0) {
+      if (replace)
+	this.map.putLong(position + 8, value);
+      return replace;
+    }
+    if (2L * (this.size + 1) > this.capacity) {
+      this.grow();
+      return this.insert(key, value, replace);
+    }
+    this.map.putLong(position + 8, value);
+    this.map.putLong(position, key);
+    this.size++;
+    this.map.putInt(12, this.size);
+    return true;
+  }
+
+  /** Double the number of slots, rehashing the keys. */
+  private void grow()
+    throws IOException
+  {
+    if (this.capacity >= MAX_CAPACITY)
+      throw new IOException("index is full at " + this.size + " keys");
+    long watermark = this.getWatermark();
+    long[] entries = new long[2 * this.size];
+    int count = 0;
+    for (int slot = 0; slot < this.capacity; slot++) {
+      long key = this.map.getLong(HEADER + slot * SLOT);
+      if (key != 0) {
+	entries[count++] = key;
+	entries[count++] = this.map.getLong(HEADER + slot * SLOT + 8);
+      }
+    }
+    this.setWatermark(-1);
+    this.map.force();
+    this.create(2 * this.capacity);
+    for (int i = 0; i < count; i += 2) {
+      int position = HEADER + this.slotOf(entries[i]) * SLOT;
+      this.map.putLong(position + 8, entries[i + 1]);
+      this.map.putLong(position, entries[i]);
+    }
+    this.size = count / 2;
+    this.map.putInt(12, this.size);
+    this.setWatermark(watermark);
+  }
+
+  /** Remove all keys, keeping the current number of slots. */
+  public void clear()
+    throws IOException
+  {
+    this.create(this.capacity);
+  }
+
+  /** @return number of keys. */
+  public int size()
+  {
+    return this.size;
+  }
+
+  /** @return value saved by setWatermark. */
+  public long getWatermark()
+  {
+    return this.map.getLong(16);
+  }
+
+  /**
+   * Save a value with the index.
+   *
+   * @param watermark value chosen by caller
+   */
+  public void setWatermark(long watermark)
+  {
+    this.map.putLong(16, watermark);
+  }
+
+  /** Write changes of the mapping to the file. */
+  public void force()
+  {
+    this.map.force();
+  }
+
+  public void close()
+    throws IOException
+  {
+    try {
+      this.force();
+    } finally {
+      this.map = null;
+      this.channel.close();
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package gov.nih.nlm.nls.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is given up before it is sent to its
+ * endpoint, for example because no service ticket could be obtained
+ * for it.  RetryPolicy neither retries it nor counts it against the
+ * circuit breaker of the endpoint.
+ */
+public class NotSentException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Creates a new <code>NotSentException</code> instance.
+   *
+   * @param message detail message
+   */
+  public NotSentException(String message)
+  {
+    super(message);
+  }
+
+  /**
+   * Creates a new <code>NotSentException</code> instance.
+   *
+   * @param message detail message
+   * @param cause failure that prevented the request from being sent
+   */
+  public NotSentException(String message, Throwable cause)
+  {
+    super(message, cause);
+  }
+}
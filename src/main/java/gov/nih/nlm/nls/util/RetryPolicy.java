@@ -0,0 +1,144 @@
+package gov.nih.nlm.nls.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Retry with exponential backoff and full jitter.
+ *
+ * The n-th retry waits a random time between zero and
+ * min(maxdelay, delay * 2^(n-1)) milliseconds.
+ * <dl>
+ *  <dt>skrapi.retry.attempts
+ *  <dd>maximum number of attempts including the first (default 3)
+ *  <dt>skrapi.retry.delay
+ *  <dd>base delay in milliseconds (default 1000)
+ *  <dt>skrapi.retry.maxdelay
+ *  <dd>maximum delay in milliseconds (default 30000)
+ * </dl>
+ */
+public final class RetryPolicy
+{
+  private static final Logger LOG = Logger.getLogger(RetryPolicy.class.getName());
+
+  /** An attempt of an operation that may be retried. */
+  public interface Attempt<T>
+  {
+    T run() throws IOException;
+  }
+
+  /** policy configured by the skrapi.retry.* properties */
+  private static final RetryPolicy defaultPolicy =
+    new RetryPolicy(Integer.parseInt(System.getProperty("skrapi.retry.attempts", "3")),
+		    Long.parseLong(System.getProperty("skrapi.retry.delay", "1000")),
+		    Long.parseLong(System.getProperty("skrapi.retry.maxdelay", "30000")));
+
+  private final int maxAttempts;
+  private final long baseDelay;
+  private final long maxDelay;
+
+  /**
+   * Creates a new <code>RetryPolicy</code> instance.
+   *
+   * @param maxAttempts maximum number of attempts including the first
+   * @param baseDelay base delay in milliseconds
+   * @param maxDelay maximum delay in milliseconds
+   */
+  public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay)
+  {
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+  }
+
+  /** @return policy configured by the skrapi.retry.* properties. */
+  public static RetryPolicy getDefault()
+  {
+    return defaultPolicy;
+  }
+
+  /**
+   * Run attempt until it succeeds, fails with an exception that is
+   * not retryable, or the attempts are used up.  Retryable failures
+   * are reported to the circuit breaker, an open breaker fails
+   * immediately.  Requests that were not sent (NotSentException, such
+   * as an open breaker of another endpoint) and unchecked exceptions,
+   * which are mistakes of the caller rather than failures of the
+   * endpoint, end a trial request without counting as a failure.
+   *
+   * @param breaker circuit breaker of endpoint, may be null
+   * @param attempt operation to run
+   * @param retryable determines if a failure may be retried
+   * @return result of first successful attempt.
+   * @throws IOException failure of last attempt, or CircuitOpenException.
+   */
+  public <T> T execute(CircuitBreaker breaker, Attempt<T> attempt,
+		       Predicate<IOException> retryable)
+    throws IOException
+  {
+    for (int n = 1; ; n++) {
+      if (breaker != null) {
+	breaker.before();
+      }
+      try {
+	T result = attempt.run();
+	if (breaker != null) {
+	  breaker.onSuccess();
+	}
+	return result;
+      } catch (RuntimeException | Error e) {
+	if (breaker != null) {
+	  breaker.onNotSent();
+	}
+	throw e;
+      } catch (NotSentException e) {
+	// this endpoint was not reached, for example because the
+	// authentication server failed or its breaker is open.
+	if (breaker != null) {
+	  breaker.onNotSent();
+	}
+	throw e;
+      } catch (IOException e) {
+	if (Thread.currentThread().isInterrupted() || ! retryable.test(e)) {
+	  if (breaker != null) {
+	    breaker.onSuccess();
+	  }
+	  throw e;
+	}
+	if (breaker != null) {
+	  breaker.onFailure();
+	}
+	if (n >= this.maxAttempts) {
+	  throw e;
+	}
+	long delay = this.delay(n);
+	LOG.warning("attempt " + n + " failed: " + e.getMessage() +
+		    ", retrying in " + delay + " ms");
+	try {
+	  Thread.sleep(delay);
+	} catch (InterruptedException ie) {
+	  Thread.currentThread().interrupt();
+	  InterruptedIOException iioe = new InterruptedIOException("interrupted waiting to retry");
+	  iioe.addSuppressed(e);
+	  throw iioe;
+	}
+      }
+    }
+  }
+
+  /**
+   * @param n number of failed attempts so far
+   * @return randomized delay before next attempt in milliseconds.
+   */
+  long delay(int n)
+  {
+    long ceiling = this.baseDelay << Math.min(n - 1, 30);
+    if ((ceiling <= 0) || (ceiling > this.maxDelay)) {
+      ceiling = this.maxDelay;
+    }
+    return (ceiling <= 0) ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+}
@@ -0,0 +1,91 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchDeduplicatorTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path write(String content)
+    throws IOException
+  {
+    Path file = this.folder.newFile().toPath();
+    Files.write(file, content.getBytes(StandardCharsets.ISO_8859_1));
+    return file;
+  }
+
+  private static String read(Path file)
+    throws IOException
+  {
+    return new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+  }
+
+  @Test
+  public void fanOutCopiesMultiLineResultsAsBlocks()
+    throws IOException
+  {
+    Path input = this.write("A|Heart attack.\nB|Heart   attack.\nC|Stroke.\nD|Heart attack.\n");
+    Path unique = this.folder.newFile().toPath();
+    Path output = this.folder.newFile().toPath();
+    try (BatchDeduplicator dedup = new BatchDeduplicator(this.folder.newFolder().toPath())) {
+      dedup.deduplicate(input, BatchDeduplicator.Format.SINGLE_LINE, unique);
+      assertEquals("A|Heart attack.\nC|Stroke.\n", read(unique));
+      Path result = this.write("A|x\nA|y\nC|z\nEOT\n");
+      long written = dedup.fanOut(result, output);
+      String expected = "A|x\nA|y\nB|x\nB|y\nD|x\nD|y\nC|z\nEOT\n";
+      assertEquals(expected, read(output));
+      assertEquals(expected.length(), written);
+    }
+  }
+
+  @Test
+  public void eachDeduplicateStartsNewJob()
+    throws IOException
+  {
+    Path unique = this.folder.newFile().toPath();
+    try (BatchDeduplicator dedup = new BatchDeduplicator(this.folder.newFolder().toPath())) {
+      dedup.deduplicate(this.write("A|Heart attack.\nB|Heart attack.\n"),
+			BatchDeduplicator.Format.SINGLE_LINE, unique);
+      assertEquals("A|Heart attack.\n", read(unique));
+      assertEquals(1, dedup.getDuplicates());
+
+      // units duplicating only the earlier job are sent again
+      assertEquals(2, dedup.deduplicate(this.write("X|Heart attack.\nY|Stroke.\nZ|Stroke.\n"),
+					BatchDeduplicator.Format.SINGLE_LINE, unique));
+      assertEquals("X|Heart attack.\nY|Stroke.\n", read(unique));
+      assertEquals(3, dedup.getUnits());
+      assertEquals(1, dedup.getDuplicates());
+      Path output = this.folder.newFile().toPath();
+      dedup.fanOut(this.write("X|x\nY|y\n"), output);
+      assertEquals("X|x\nY|y\nZ|y\n", read(output));
+    }
+  }
+
+  @Test
+  public void medlineCitationsAreComparedByTitleAndAbstract()
+    throws IOException
+  {
+    String first = "PMID- 1\nTI  - Heart attack\n      in men.\nAB  - Rare.\n\n";
+    String second = "PMID- 2\nDP  - 2020\nTI  - Heart attack in\n      men.\nAB  - Rare.\n\n";
+    String third = "PMID- 3\nTI  - Heart attack in men.\n\n";
+    Path unique = this.folder.newFile().toPath();
+    Path output = this.folder.newFile().toPath();
+    try (BatchDeduplicator dedup = new BatchDeduplicator(this.folder.newFolder().toPath())) {
+      assertEquals(2, dedup.deduplicate(this.write(first + second + third),
+					BatchDeduplicator.Format.MEDLINE, unique));
+      assertEquals(first + third, read(unique));
+      dedup.fanOut(this.write("1|MH|Heart\n1|MH|Men\n3|MH|Heart\n"), output);
+      assertEquals("1|MH|Heart\n1|MH|Men\n2|MH|Heart\n2|MH|Men\n3|MH|Heart\n", read(output));
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchJournalTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path write(String content)
+    throws IOException
+  {
+    Path file = this.folder.newFile().toPath();
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  @Test
+  public void replayDropsTornTail()
+    throws IOException
+  {
+    Path input = this.write("1|first\n2|second\n");
+    Path part0 = this.write("1|first\n");
+    Path part1 = this.write("2|second\n");
+    Path result0 = this.write("1|C0000001\n");
+    Path journalFile = this.folder.getRoot().toPath().resolve("run.journal");
+
+    try (BatchJournal journal = BatchJournal.open(journalFile)) {
+      journal.beginRun(input, 2);
+      BatchJournal.Part first = journal.addPart(0, 0, part0);
+      BatchJournal.Part second = journal.addPart(1, 8, part1);
+      journal.setState(first, BatchJournal.State.DONE, result0);
+      journal.setState(second, BatchJournal.State.SUBMITTED, null);
+    }
+    long intact = Files.size(journalFile);
+    // a crash while the DONE record of the second part was written
+    Files.write(journalFile, "STATE 1 DO".getBytes(StandardCharsets.UTF_8),
+		StandardOpenOption.APPEND);
+
+    try (BatchJournal journal = BatchJournal.open(journalFile)) {
+      assertEquals(intact, Files.size(journalFile));
+      assertTrue(journal.matches(input, 2));
+      List<BatchJournal.Part> parts = journal.getParts();
+      assertEquals(BatchJournal.State.DONE, parts.get(0).state);
+      assertTrue(journal.isComplete(parts.get(0)));
+      assertEquals(BatchJournal.State.SUBMITTED, parts.get(1).state);
+      assertNull(parts.get(1).result);
+      journal.setState(parts.get(1), BatchJournal.State.FAILED, null);
+    }
+
+    // the record appended after the truncation starts on its own line
+    try (BatchJournal journal = BatchJournal.open(journalFile)) {
+      assertEquals(BatchJournal.State.FAILED, journal.getParts().get(1).state);
+    }
+  }
+}
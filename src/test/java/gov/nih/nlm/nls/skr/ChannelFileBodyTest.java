@@ -0,0 +1,50 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChannelFileBodyTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void formWithChannelFileBodyIsRepeatable()
+    throws IOException
+  {
+    File file = this.folder.newFile();
+    byte[] content = new byte[100000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte)('a' + (i % 26));
+    }
+    Files.write(file.toPath(), content);
+    final AtomicLong reported = new AtomicLong();
+    ChannelFileBody body = new ChannelFileBody(file, ContentType.TEXT_PLAIN)
+      .withListener((filename, sent, total, rate, eta) -> reported.set(sent));
+    assertEquals(content.length, body.getContentLength());
+
+    HttpEntity entity = MultipartEntityBuilder.create().addPart("UpLoad_File", body).build();
+    assertTrue(entity.isRepeatable());
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    entity.writeTo(first);
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    entity.writeTo(second);
+    assertEquals(entity.getContentLength(), first.size());
+    assertArrayEquals(first.toByteArray(), second.toByteArray());
+    assertEquals(content.length, reported.get());
+  }
+}
@@ -0,0 +1,50 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChunkedSubmissionTest
+{
+  private static String machineOutput(String aas, String negations, String text, int length)
+  {
+    return "args('MetaMap',[]).\n" +
+      "aas([" + aas + "]).\n" +
+      "neg_list([" + negations + "]).\n" +
+      "utterance('00000000.tx.1',\"" + text + "\",0/" + length + ",[]).\n" +
+      "phrase('x',[],0/1,[]).\n" +
+      "'EOU'.\n" +
+      "<< EOT >>\n";
+  }
+
+  @Test
+  public void mergesMachineOutputHeadersAndRenumbersUtterances()
+  {
+    List<TextChunker.Chunk> chunks = TextChunker.split("Heart attack. Lung cancer.", 14);
+    List<String> results = Arrays.asList(machineOutput("", "neg(a,0/1)", "Heart attack.", 13),
+					 machineOutput("x", "neg(b,0/1)", "Lung cancer.", 12));
+    assertEquals("args('MetaMap',[]).\n" +
+		 "aas([x]).\n" +
+		 "neg_list([neg(a,0/1),neg(b,14/1)]).\n" +
+		 "utterance('00000000.tx.1',\"Heart attack.\",0/13,[]).\n" +
+		 "phrase('x',[],0/1,[]).\n" +
+		 "'EOU'.\n" +
+		 "utterance('00000000.tx.2',\"Lung cancer.\",14/12,[]).\n" +
+		 "phrase('x',[],14/1,[]).\n" +
+		 "'EOU'.\n" +
+		 "<< EOT >>\n",
+		 ChunkedSubmission.merge(chunks, results, OffsetAdjuster.POSITIONAL));
+  }
+
+  @Test
+  public void concatenatesOtherResults()
+  {
+    List<TextChunker.Chunk> chunks = TextChunker.split("aaaa bbbb", 5);
+    List<String> results = Arrays.asList("00000000|Heart|C1\n<< EOT >>\n", "00000000|Lung|C2\n<< EOT >>\n");
+    assertEquals("00000000|Heart|C1\n00000000|Lung|C2\n<< EOT >>\n",
+		 ChunkedSubmission.merge(chunks, results, OffsetAdjuster.NONE));
+  }
+}
@@ -0,0 +1,42 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class CompressionStatsTest
+{
+  @Test
+  public void gzipUploadCompressesAndCounts()
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("00000001|heart attack\n");
+    }
+    long raw = CompressionStats.getUploadRawBytes();
+    long wire = CompressionStats.getUploadWireBytes();
+    HttpEntity entity = CompressionStats.gzipUpload(new StringEntity(sb.toString(), StandardCharsets.UTF_8));
+    assertEquals("gzip", entity.getContentEncoding().getValue());
+    assertTrue(entity.isChunked());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    assertEquals(sb.length(), CompressionStats.getUploadRawBytes() - raw);
+    assertEquals(out.size(), CompressionStats.getUploadWireBytes() - wire);
+    assertTrue(out.size() < sb.length() / 10);
+    String decoded = EntityUtils.toString
+      (new InputStreamEntity(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))), StandardCharsets.UTF_8);
+    assertEquals(sb.toString(), decoded);
+  }
+}
@@ -0,0 +1,90 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MedlineSplitterTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static String citation(int pmid, String eol)
+  {
+    return "PMID- " + pmid + eol + "TI  - Heart attack in men" + eol +
+      "      and women." + eol + "AB  - PMID- inside text" + eol + eol;
+  }
+
+  private List<Path> split(String content, int parts)
+    throws IOException
+  {
+    Path input = this.folder.newFile().toPath();
+    Files.write(input, content.getBytes(StandardCharsets.ISO_8859_1));
+    List<Path> files = MedlineSplitter.split(input, parts, this.folder.newFolder().toPath());
+    ByteArrayOutputStream joined = new ByteArrayOutputStream();
+    for (Path file: files) {
+      joined.write(Files.readAllBytes(file));
+    }
+    assertArrayEquals(Files.readAllBytes(input), joined.toByteArray());
+    return files;
+  }
+
+  @Test
+  public void cutsOnlyAtCitationStarts()
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      sb.append(citation(i, "\n"));
+    }
+    List<Path> files = this.split(sb.toString(), 3);
+    assertEquals(3, files.size());
+    for (Path file: files) {
+      String part = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+      assertTrue(part.startsWith("PMID- "));
+      assertTrue(part.endsWith("\n\n"));
+    }
+  }
+
+  @Test
+  public void keepsCrlfAndBytesOfInput()
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 6; i++) {
+      sb.append(citation(i, "\r\n")).append("UI  - \u00e9\r");
+    }
+    sb.append("\r\nUI  - last without terminator");
+    List<Path> files = this.split(sb.toString(), 4);
+    assertTrue(files.size() > 1);
+  }
+
+  @Test
+  public void fewerPartsThanCitations()
+    throws IOException
+  {
+    assertEquals(1, this.split(citation(1, "\n"), 5).size());
+    assertEquals(0, this.split("", 5).size());
+  }
+
+  @Test
+  public void citationStartFollowsBlankLine()
+  {
+    assertTrue(MedlineSplitter.isCitationStart("PMID- 1", true));
+    assertTrue(MedlineSplitter.isCitationStart("UI  - 1", true));
+    assertFalse(MedlineSplitter.isCitationStart("PMID- 1", false));
+    assertFalse(MedlineSplitter.isCitationStart("TI  - x", true));
+  }
+}
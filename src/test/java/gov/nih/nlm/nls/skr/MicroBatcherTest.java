@@ -0,0 +1,139 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.mime.content.ContentBody;
+import org.junit.Test;
+
+public class MicroBatcherTest
+{
+  /** uploads received by the stub service */
+  private final List<String> uploads = new CopyOnWriteArrayList<String>();
+
+  /** marker appended to the stub's results, null for none */
+  private volatile String marker = null;
+
+  /**
+   * Batch job answering two lines for each document whose text is not
+   * "none", after a line without an ID.
+   */
+  private final GenericObject job = new GenericObject("key") {
+      String requestResult(Map<String,ContentBody> form, AbortHandle abort)
+	throws IOException
+      {
+	assertEquals("true", bodyText(form.get("SingLinePMID")));
+	ByteArrayOutputStream upload = new ByteArrayOutputStream();
+	form.get("UpLoad_File").writeTo(upload);
+	String input = new String(upload.toByteArray(), StandardCharsets.UTF_8);
+	uploads.add(input);
+	StringBuilder sb = new StringBuilder("header\n");
+	for (String line: input.split("\n")) {
+	  int bar = line.indexOf('|');
+	  String text = line.substring(bar + 1);
+	  if (! text.equals("none")) {
+	    sb.append(line, 0, bar).append("|MH|").append(text).append('\n');
+	    sb.append(line, 0, bar).append("|MH|Humans\n");
+	  }
+	}
+	if (marker != null) {
+	  sb.append(marker).append('\n');
+	}
+	return sb.toString();
+      }
+    };
+
+  private MicroBatcher batcher(int maxDocuments, long delay)
+  {
+    return new MicroBatcher(this.job, maxDocuments, delay, TimeUnit.MILLISECONDS, Runnable::run);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInteractiveJob()
+  {
+    new MicroBatcher(new GenericObject(300, "key"));
+  }
+
+  @Test
+  public void sendsBatchWhenFull()
+    throws Exception
+  {
+    try (MicroBatcher batcher = this.batcher(2, TimeUnit.HOURS.toMillis(1))) {
+      CompletableFuture<String> first = batcher.submit("10", "Heart");
+      assertFalse(first.isDone());
+      CompletableFuture<String> second = batcher.submit("20", "Lung\nCancer");
+      assertEquals("10|MH|Heart\n10|MH|Humans\n", first.get());
+      assertEquals("20|MH|Lung Cancer\n20|MH|Humans\n", second.get());
+      assertEquals(1, batcher.getBatches());
+      assertEquals(2, batcher.getDocuments());
+      assertEquals("1|Heart\n2|Lung Cancer\n", this.uploads.get(0));
+      batcher.submit("30", "Liver");
+    }
+    // close sends the partial batch
+    assertEquals(2, this.uploads.size());
+    assertEquals("1|Liver\n", this.uploads.get(1));
+  }
+
+  @Test
+  public void sendsBatchAfterDelay()
+    throws Exception
+  {
+    try (MicroBatcher batcher = this.batcher(100, 50)) {
+      CompletableFuture<String> result = batcher.submit("10", "Heart");
+      assertEquals("10|MH|Heart\n10|MH|Humans\n", result.get(10, TimeUnit.SECONDS));
+      assertEquals(1, batcher.getBatches());
+    }
+  }
+
+  @Test
+  public void documentWithoutResultLinesIsEmpty()
+    throws Exception
+  {
+    try (MicroBatcher batcher = this.batcher(2, TimeUnit.HOURS.toMillis(1))) {
+      CompletableFuture<String> empty = batcher.submit("10", "none");
+      CompletableFuture<String> full = batcher.submit("20", "Heart");
+      assertEquals("", empty.get());
+      assertEquals("20|MH|Heart\n20|MH|Humans\n", full.get());
+    }
+  }
+
+  private static void assertTruncated(CompletableFuture<String> future)
+    throws InterruptedException
+  {
+    try {
+      future.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TruncatedResultException);
+    }
+  }
+
+  @Test
+  public void missingEndOfResultFailsEveryDocument()
+    throws Exception
+  {
+    this.job.setField("Batch_Command", "MTI -opt1L_DCMS -E");
+    try (MicroBatcher batcher = this.batcher(2, TimeUnit.HOURS.toMillis(1))) {
+      CompletableFuture<String> first = batcher.submit("10", "Heart");
+      CompletableFuture<String> second = batcher.submit("20", "Lung");
+      assertTruncated(first);
+      assertTruncated(second);
+    }
+    this.marker = ChunkedSubmission.EOT_MARKER;
+    try (MicroBatcher batcher = this.batcher(1, TimeUnit.HOURS.toMillis(1))) {
+      assertEquals("10|MH|Heart\n10|MH|Humans\n", batcher.submit("10", "Heart").get());
+    }
+  }
+}
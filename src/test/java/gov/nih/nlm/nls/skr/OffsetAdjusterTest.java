@@ -0,0 +1,50 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class OffsetAdjusterTest
+{
+  @Test
+  public void shiftsPositionsOfMachineOutput()
+  {
+    String result = "utterance('00000000.tx.1',\"Heart 1/2 attack.\",0/13,[]).\n" +
+      "phrase('Heart attack',[head([lexmatch([heart attack])])],0/12,[]).\n" +
+      "mappings([map(-1000,[ev(-1000,'C0027051','Heart attack',[],[],[],[],[],0,[[[1,2],[1,2],0]],yes,no,[],[0/12],0,0)])]).\n";
+    String expected = "utterance('00000000.tx.1',\"Heart 1/2 attack.\",100/13,[]).\n" +
+      "phrase('Heart attack',[head([lexmatch([heart attack])])],100/12,[]).\n" +
+      "mappings([map(-1000,[ev(-1000,'C0027051','Heart attack',[],[],[],[],[],0,[[[1,2],[1,2],0]],yes,no,[],[100/12],0,0)])]).\n";
+    assertEquals(expected, OffsetAdjuster.POSITIONAL.adjust(result, 100));
+  }
+
+  @Test
+  public void shiftsFieldedOutput()
+  {
+    assertEquals("00000000|MMI|5.18|Heart attack|C0027051|[dsyn]|[\"Heart Attack\"-tx-1-\"Heart attack\"-noun-0]|TX|17/12|",
+		 OffsetAdjuster.POSITIONAL.adjust
+		 ("00000000|MMI|5.18|Heart attack|C0027051|[dsyn]|[\"Heart Attack\"-tx-1-\"Heart attack\"-noun-0]|TX|7/12|", 10));
+  }
+
+  @Test
+  public void apostropheInWordDoesNotStartQuotation()
+  {
+    assertEquals("phrase('Crohn''s',[],5/7,[]) x's 15/2\n",
+		 OffsetAdjuster.POSITIONAL.adjust("phrase('Crohn''s',[],0/7,[]) x's 10/2\n", 5));
+  }
+
+  @Test
+  public void quotationEndsAtEndOfLine()
+  {
+    assertEquals("a \"unterminated 1/2\n3/4\n", OffsetAdjuster.POSITIONAL.adjust("a \"unterminated 1/2\n1/4\n", 2));
+  }
+
+  @Test
+  public void zeroOffsetAndNoneLeaveResult()
+  {
+    String result = "x 1/2";
+    assertSame(result, OffsetAdjuster.POSITIONAL.adjust(result, 0));
+    assertSame(result, OffsetAdjuster.NONE.adjust(result, 7));
+  }
+}
@@ -0,0 +1,113 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultStoreTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static RequestKey key(int i)
+  {
+    Map<String,ContentBody> form = new HashMap<String,ContentBody>();
+    form.put("COMMAND_ARGS", new StringBody("-q -E", ContentType.TEXT_PLAIN));
+    form.put("APIText", new StringBody("text " + i, ContentType.TEXT_PLAIN));
+    return RequestKey.of("https://example.org/service", form);
+  }
+
+  @Test
+  public void rebuildsIndexAfterTornRecord()
+    throws IOException
+  {
+    Path directory = this.folder.getRoot().toPath();
+    ResultStore store = ResultStore.open(directory, 1 << 20);
+    for (int i = 0; i < 100; i++) {
+      store.put(key(i), "result " + i);
+    }
+    store.close();
+    long size = Files.size(directory.resolve("results.dat"));
+    // a crash while a record was appended
+    Files.write(directory.resolve("results.dat"), new byte[] { 0, 0, 0, 9, 1, 2 },
+		StandardOpenOption.APPEND);
+
+    store = ResultStore.open(directory, 1 << 20);
+    try {
+      assertEquals(size, store.getDataBytes());
+      assertEquals(100, store.size());
+      for (int i = 0; i < 100; i++) {
+	assertEquals("result " + i, store.get(key(i)));
+      }
+      assertNull(store.get(key(100)));
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void compactionKeepsNewestResults()
+    throws IOException
+  {
+    Path directory = this.folder.getRoot().toPath();
+    try (ResultStore store = ResultStore.open(directory, 4096)) {
+      StringBuilder result = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+	result.append('x');
+      }
+      for (int i = 0; i < 100; i++) {
+	store.put(key(i), i + result.toString());
+      }
+      assertTrue(store.getCompactions() > 0);
+      assertTrue(store.getDataBytes() <= 4096);
+      assertEquals(99 + result.toString(), store.get(key(99)));
+      assertNull(store.get(key(0)));
+      assertTrue(store.size() < 100);
+    }
+    try (ResultStore store = ResultStore.open(directory, 4096)) {
+      assertTrue(store.get(key(99)).startsWith("99x"));
+    }
+  }
+
+  @Test
+  public void storesOnlyResultsCheckedForEndMarker()
+    throws IOException
+  {
+    final AtomicInteger requests = new AtomicInteger();
+    GenericObject job = new GenericObject(100, "key") {
+	String requestInteractiveResult(Map<String,ContentBody> form, AbortHandle abort) {
+	  requests.incrementAndGet();
+	  return "result\n" + ChunkedSubmission.EOT_MARKER + "\n";
+	}
+      };
+    try (ResultStore store = ResultStore.open(this.folder.getRoot().toPath(), 1 << 20)) {
+      job.setResultStore(store);
+      job.setField("APIText", "heart attack");
+      job.setField("COMMAND_ARGS", "-q");
+      job.handleSubmission();
+      job.handleSubmission();
+      assertEquals(2, requests.get());
+      assertEquals(0, store.size());
+      job.setField("COMMAND_ARGS", "-q -E");
+      job.handleSubmission();
+      job.handleSubmission();
+      assertEquals(3, requests.get());
+      assertEquals(1, store.size());
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ResultTransferTest
+{
+  /** Stream returning at most size bytes per read, so reads end at every possible boundary. */
+  private static final class TrickleInputStream extends ByteArrayInputStream
+  {
+    private final int size;
+
+    TrickleInputStream(String content, int size)
+    {
+      super(content.getBytes(StandardCharsets.UTF_8));
+      this.size = size;
+    }
+
+    public synchronized int read(byte[] b, int off, int len)
+    {
+      return super.read(b, off, Math.min(len, this.size));
+    }
+
+    public synchronized int available()
+    {
+      return 0;
+    }
+  }
+
+  private static String copy(InputStream input)
+    throws IOException
+  {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    TransferStats stats = ResultTransfer.copy(input, Channels.newChannel(output));
+    assertEquals(output.size(), stats.getBytesWritten());
+    return new String(output.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void dropsKeepAliveLinesAtEveryBufferBoundary()
+    throws IOException
+  {
+    String input = "NOT DONE LOOP\nresult 1\r\nNOT DONE LOOP 2\nNOT DONE\nNOT DONE LOOPS\nx NOT DONE LOOP\nlast";
+    String expected = "result 1\r\nNOT DONE\nx NOT DONE LOOP\nlast";
+    for (int size = 1; size <= input.length(); size++) {
+      assertEquals("read size " + size, expected, copy(new TrickleInputStream(input, size)));
+    }
+  }
+
+  @Test
+  public void keepsPartialPrefixAtEndOfInput()
+    throws IOException
+  {
+    for (int size = 1; size <= 8; size++) {
+      assertEquals("a\nNOT DO", copy(new TrickleInputStream("a\nNOT DO", size)));
+    }
+  }
+
+  @Test
+  public void countsBytesRead()
+    throws IOException
+  {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    TransferStats stats = ResultTransfer.copy(new TrickleInputStream("NOT DONE LOOP\nok\n", 3),
+					      Channels.newChannel(output));
+    assertEquals(17, stats.getBytesRead());
+    assertEquals(3, stats.getBytesWritten());
+  }
+}
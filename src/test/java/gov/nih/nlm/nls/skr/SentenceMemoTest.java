@@ -0,0 +1,110 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.entity.mime.content.ContentBody;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SentenceMemoTest
+{
+  private static final String HEADER = "args('MetaMap',[]).\naas([]).\nneg_list([]).\n";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ResultStore store;
+
+  /** texts received by the stub service */
+  private final List<String> requests = new ArrayList<String>();
+
+  /** Answers with one utterance per blank line separated paragraph. */
+  private final GenericObject job = new GenericObject(100, "key") {
+      String requestInteractiveResult(Map<String,ContentBody> form, AbortHandle abort) {
+	String text = bodyText(form.get("APIText"));
+	requests.add(text);
+	StringBuilder sb = new StringBuilder(HEADER);
+	int offset = 0;
+	int n = 0;
+	for (String part: text.split("\n\n")) {
+	  if (! part.isEmpty()) {
+	    n++;
+	    sb.append("utterance('00000000.tx.").append(n).append("',\"").append(part)
+	      .append("\",").append(offset).append('/').append(part.length()).append(",[]).\n");
+	    sb.append("phrase('").append(part).append("',[],").append(offset).append('/')
+	      .append(part.length()).append(",[]).\n");
+	  }
+	  offset += part.length() + 2;
+	}
+	return sb.append(ChunkedSubmission.EOT_MARKER).append('\n').toString();
+      }
+    };
+
+  @Before
+  public void setUp()
+    throws IOException
+  {
+    SentenceMemo.clear();
+    this.store = ResultStore.open(this.folder.getRoot().toPath(), 1 << 20);
+    this.job.setResultStore(this.store);
+    this.job.setField("COMMAND_ARGS", "-q -E");
+  }
+
+  @After
+  public void tearDown()
+    throws IOException
+  {
+    this.store.close();
+  }
+
+  @Test
+  public void splicesMemoizedSentences()
+  {
+    this.job.setField("APIText", "Heart attack. Stroke.");
+    String first = this.job.handleSentenceMemoSubmission();
+    assertEquals(HEADER +
+		 "utterance('00000000.tx.1',\"Heart attack.\",0/13,[]).\n" +
+		 "phrase('Heart attack.',[],0/13,[]).\n" +
+		 "utterance('00000000.tx.2',\"Stroke.\",14/7,[]).\n" +
+		 "phrase('Stroke.',[],14/7,[]).\n" +
+		 ChunkedSubmission.EOT_MARKER + "\n", first);
+    assertEquals(1, this.requests.size());
+    assertEquals("Heart attack.\n\nStroke.\n\n", this.requests.get(0));
+
+    this.job.setField("APIText", "Stroke. Heart attack.");
+    String second = this.job.handleSentenceMemoSubmission();
+    assertEquals(1, this.requests.size());
+    assertTrue(second.contains("utterance('00000000.tx.1',\"Stroke.\",0/7,[])."));
+    assertTrue(second.contains("utterance('00000000.tx.2',\"Heart attack.\",8/13,[])."));
+  }
+
+  @Test
+  public void ordinaryRequestIsNotAnsweredByMemo()
+  {
+    this.job.setField("APIText", "Heart attack. Stroke.");
+    this.job.handleSentenceMemoSubmission();
+    this.job.setField("APIText", "Stroke.");
+    String result = this.job.handleSubmission();
+    assertEquals(2, this.requests.size());
+    assertEquals("Stroke.", this.requests.get(1));
+    assertTrue(result.startsWith(HEADER));
+    assertTrue(result.endsWith(ChunkedSubmission.EOT_MARKER + "\n"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void uncheckedResultsAreRejected()
+  {
+    this.job.setField("COMMAND_ARGS", "-q");
+    this.job.setField("APIText", "Heart attack.");
+    this.job.handleSentenceMemoSubmission();
+  }
+}
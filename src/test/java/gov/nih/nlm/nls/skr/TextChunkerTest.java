@@ -0,0 +1,91 @@
+package gov.nih.nlm.nls.skr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TextChunkerTest
+{
+  private static void assertCoversText(String text, List<TextChunker.Chunk> chunks, int limit)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (TextChunker.Chunk chunk: chunks) {
+      assertEquals(sb.length(), chunk.getOffset());
+      assertTrue(chunk.getText().length() <= limit);
+      sb.append(chunk.getText());
+    }
+    assertEquals(text, sb.toString());
+  }
+
+  @Test
+  public void shortTextIsOneChunk()
+  {
+    List<TextChunker.Chunk> chunks = TextChunker.split("heart attack", 100);
+    assertEquals(1, chunks.size());
+    assertEquals("heart attack", chunks.get(0).getText());
+    assertEquals(1, TextChunker.split("", 10).size());
+  }
+
+  @Test
+  public void cutsAtParagraphBeforeSentence()
+  {
+    String text = "First one. Second one.\n\nThird paragraph here.";
+    List<TextChunker.Chunk> chunks = TextChunker.split(text, 30);
+    assertCoversText(text, chunks, 30);
+    assertEquals("First one. Second one.\n\n", chunks.get(0).getText());
+  }
+
+  @Test
+  public void cutsAtSentenceBeforeWhitespace()
+  {
+    String text = "Lung cancer. Heart attack in men and women";
+    List<TextChunker.Chunk> chunks = TextChunker.split(text, 30);
+    assertCoversText(text, chunks, 30);
+    assertEquals("Lung cancer. ", chunks.get(0).getText());
+  }
+
+  @Test
+  public void cutsAtWhitespaceThenMidWord()
+  {
+    String text = "aaaa bbbb cccc";
+    List<TextChunker.Chunk> chunks = TextChunker.split(text, 7);
+    assertCoversText(text, chunks, 7);
+    assertEquals("aaaa ", chunks.get(0).getText());
+    String word = "abcdefghij";
+    chunks = TextChunker.split(word, 4);
+    assertCoversText(word, chunks, 4);
+    assertEquals(3, chunks.size());
+  }
+
+  @Test
+  public void sentencesEndAtPunctuationBeforeCapitalOrNumber()
+  {
+    String text = "Heart attack in men. 3 patients died!  Was it  stroke? yes.\n\nNew paragraph";
+    List<TextChunker.Chunk> sentences = TextChunker.sentences(text);
+    assertEquals(4, sentences.size());
+    assertEquals("Heart attack in men.", sentences.get(0).getText());
+    assertEquals("3 patients died!", sentences.get(1).getText());
+    assertEquals(21, sentences.get(1).getOffset());
+    assertEquals("Was it  stroke? yes.", sentences.get(2).getText());
+    assertEquals("New paragraph", sentences.get(3).getText());
+  }
+
+  @Test
+  public void sentencesDoNotEndAtAbbreviations()
+  {
+    String text = "Dr. Smith et al. Found it in Fig. 3 shows e.g. Lung vs. Heart. Then it ended.";
+    List<TextChunker.Chunk> sentences = TextChunker.sentences(text);
+    assertEquals(2, sentences.size());
+    assertEquals("Then it ended.", sentences.get(1).getText());
+    assertEquals(text.indexOf("Then"), sentences.get(1).getOffset());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositiveLimit()
+  {
+    TextChunker.split("text", 0);
+  }
+}
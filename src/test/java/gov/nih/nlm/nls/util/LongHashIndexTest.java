@@ -0,0 +1,66 @@
+package gov.nih.nlm.nls.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LongHashIndexTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void growsAndKeepsKeysAndWatermark()
+    throws IOException
+  {
+    Path file = this.folder.getRoot().toPath().resolve("test.idx");
+    try (LongHashIndex index = LongHashIndex.open(file, 4)) {
+      long initial = Files.size(file);
+      index.setWatermark(1234);
+      for (long key = 0; key < 1000; key++) {
+	index.put(key * 0x100000001L, key);
+      }
+      assertTrue(Files.size(file) > initial);
+      assertEquals(1000, index.size());
+      assertEquals(1234, index.getWatermark());
+      assertFalse(index.putIfAbsent(0, 7));
+      assertEquals(0, index.get(0));
+      assertEquals(-1, index.get(-1));
+    }
+    try (LongHashIndex index = LongHashIndex.open(file, 4)) {
+      assertEquals(1000, index.size());
+      assertEquals(1234, index.getWatermark());
+      for (long key = 0; key < 1000; key++) {
+	assertEquals(key, index.get(key * 0x100000001L));
+      }
+    }
+  }
+
+  @Test
+  public void clearsInPlaceAndReplacesOtherFiles()
+    throws IOException
+  {
+    Path file = this.folder.newFile("other.idx").toPath();
+    Files.write(file, new byte[100]);
+    try (LongHashIndex index = LongHashIndex.open(file, 4)) {
+      for (long key = 1; key <= 100; key++) {
+	index.put(key, key);
+      }
+      long length = Files.size(file);
+      index.clear();
+      assertEquals(length, Files.size(file));
+      assertEquals(0, index.size());
+      assertEquals(-1, index.get(50));
+      index.put(50, 7);
+      assertEquals(7, index.get(50));
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package gov.nih.nlm.nls.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RetryPolicyTest
+{
+  private final RetryPolicy policy = new RetryPolicy(1, 0, 0);
+
+  /** Open breaker whose cool-down has passed, so the next request is a trial. */
+  private static CircuitBreaker openBreaker()
+  {
+    CircuitBreaker breaker = new CircuitBreaker("test", 1, 0);
+    breaker.onFailure();
+    assertTrue(breaker.isOpen());
+    return breaker;
+  }
+
+  @Test
+  public void uncheckedExceptionEndsTrialWithoutFailure()
+    throws IOException
+  {
+    CircuitBreaker breaker = openBreaker();
+    try {
+      this.policy.execute(breaker, () -> { throw new IllegalStateException("bad page"); }, e -> true);
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("bad page", e.getMessage());
+    }
+    // the trial is over, so another trial may be sent and close the breaker
+    assertEquals("ok", this.policy.execute(breaker, () -> "ok", e -> true));
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test
+  public void callerMistakeDoesNotOpenBreaker()
+    throws IOException
+  {
+    CircuitBreaker breaker = new CircuitBreaker("test", 1, 60000);
+    try {
+      this.policy.execute(breaker, () -> { throw new IllegalArgumentException("no email"); },
+			  e -> true);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("no email", e.getMessage());
+    }
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test
+  public void failingTicketServerIsNotRetriedByService()
+  {
+    final RetryPolicy retries = new RetryPolicy(3, 0, 0);
+    final CircuitBreaker cas = new CircuitBreaker("cas", 10, 60000);
+    CircuitBreaker service = new CircuitBreaker("service", 1, 60000);
+    final AtomicInteger casAttempts = new AtomicInteger();
+    try {
+      retries.execute(service, () -> {
+	  try {
+	    // ticket request retried by its own policy and breaker
+	    retries.execute(cas, () -> {
+		casAttempts.incrementAndGet();
+		throw new ConnectException("cas down");
+	      }, e -> true);
+	  } catch (IOException e) {
+	    throw new NotSentException("unable to acquire service ticket", e);
+	  }
+	  return "sent";
+	}, e -> true);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e instanceof NotSentException);
+    }
+    assertEquals(3, casAttempts.get());
+    assertFalse(service.isOpen());
+  }
+
+  @Test
+  public void openBreakerOfAnotherEndpointEndsTrial()
+    throws IOException
+  {
+    CircuitBreaker breaker = openBreaker();
+    try {
+      this.policy.execute(breaker, () -> { throw new CircuitOpenException("cas"); }, e -> true);
+      fail();
+    } catch (CircuitOpenException e) {
+      assertEquals("cas", e.getMessage());
+    }
+    assertTrue(breaker.isOpen());
+    assertEquals("ok", this.policy.execute(breaker, () -> "ok", e -> true));
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test
+  public void openBreakerRefusesRequest()
+  {
+    CircuitBreaker breaker = new CircuitBreaker("test", 1, 60000);
+    breaker.onFailure();
+    try {
+      this.policy.execute(breaker, () -> "ok", e -> true);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e instanceof CircuitOpenException);
+    }
+  }
+}